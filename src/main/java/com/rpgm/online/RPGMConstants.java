@@ -75,6 +75,9 @@ public final class RPGMConstants {
     /** Blog page resource type */
     public static final String PAGE_TYPE_BLOG = PAGE_TYPE + "/blogPage";
 
+    /** Blog list page resource type */
+    public static final String PAGE_TYPE_BLOG_LIST = PAGE_TYPE + "/blogListPage";
+
     /** Authors group name */
     public static final String GROUP_ID_AUTHORS = "authors";
 
@@ -97,4 +100,25 @@ public final class RPGMConstants {
     public static final String PASSWORD_REPLACEMENT = "****************";
 
     public static final String PROP_BLOG_VISIBLE = "visible";
+
+    /** Number of comments kept on the comments node of a blog post */
+    public static final String PROP_COMMENT_COUNT = "commentCount";
+
+    /** Path of the comments node of the blog post a comment belongs to */
+    public static final String PROP_COMMENT_THREAD = "thread";
+
+    /** Path of the comment a comment replies to, relative to the comments node */
+    public static final String PROP_COMMENT_PARENT = "parent";
+
+    /** Marks comments nodes whose comments all have the thread property */
+    public static final String PROP_COMMENTS_THREADED = "threaded";
+
+    /** Marks comments held for moderation, which aren't displayed or counted */
+    public static final String PROP_COMMENT_HELD = "held";
+
+    /** Marks comments a moderator approved, which the spam filter has been trained with */
+    public static final String PROP_COMMENT_APPROVED = "approved";
+
+    /** Path a comment had before it was moved into its bucket, relative to the comments node */
+    public static final String PROP_COMMENT_MIGRATED_FROM = "migratedFrom";
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rpgm.online.services.BlogService;
+import com.rpgm.online.services.PostPage;
 
 /**
  * Sightly component to display a list of blog posts for the public visitor.
@@ -27,6 +28,12 @@ public class BlogList {
      */
     private static final String PAGINATION_PARAMETER = "page";
 
+    /**
+     * The querystring parameter holding the cursor of the last post
+     * on the previous page.
+     */
+    private static final String CURSOR_PARAMETER = "after";
+
     /**
      * Default blog posts per pagination page.
      */
@@ -37,6 +44,11 @@ public class BlogList {
      */
     private static final String PAGE_SIZE_PROPERTY = "pageSize";
 
+    /**
+     * The extension of the blog list HTML fragment.
+     */
+    private static final String FRAGMENT_EXTENSION = ".html";
+
     /**
      * The logger.
      */
@@ -56,43 +68,78 @@ public class BlogList {
     }
 
     /**
-     * Get blog posts from Blog Service using pagination offset
-     * and number of posts.
+     * Get blog posts from Blog Service using the pagination cursor
+     * when one is given, otherwise the pagination page number, and
+     * number of posts. The page is shared with the pagination component
+     * through the Blog Service.
      *
      * @return The blog posts.
      */
     public List<Resource> getBlogs() {
-        long postsPerPage = resource.adaptTo(ValueMap.class).get(PAGE_SIZE_PROPERTY, DEFAULT_POSTS_PER_PAGE);
-        final Long offset = getOffset(postsPerPage);
-        return blogService.getPublishedPosts(request, offset, postsPerPage);
+        return getPage().getItems();
     }
 
     /**
-     * Get the starting point for pagination based on the querystring.
+     * Get the number of blog posts per page.
      *
-     * If blog post to start at is determined by the page number from
-     * the suffix multiplied by the number of posts per page. If the
-     * page number is 1 or 0, start from the beginning.
+     * @return The number of blog posts per page.
+     */
+    public long getPageSize() {
+        return resource.adaptTo(ValueMap.class).get(PAGE_SIZE_PROPERTY, DEFAULT_POSTS_PER_PAGE);
+    }
+
+    /**
+     * Get the cursor to load the blog posts following this page.
      *
-     * @return The blog post number to start at.
+     * @return The cursor or null if this is the last page.
      */
-    private Long getOffset(long postsPerPage) {
-        Long offset = 0L;
+    public String getNextCursor() {
+        PostPage page = getPage();
+        return page.hasNext() ? page.getNextCursor() : null;
+    }
+
+    /**
+     * Get the path of the blog list component rendered on its own, which
+     * loads further blog posts of the current list page as HTML.
+     *
+     * @return The path of the blog list HTML fragment.
+     */
+    public String getFragmentPath() {
+        return request.getResource().getPath() + FRAGMENT_EXTENSION;
+    }
+
+    /**
+     * Get the current page of blog posts from Blog Service.
+     *
+     * @return The current page of blog posts.
+     */
+    private PostPage getPage() {
+        final String cursor = request.getParameter(CURSOR_PARAMETER);
+        return blogService.getPublishedPage(request, getPageNumber(request), cursor, getPageSize());
+    }
+
+    /**
+     * Get the page number from the querystring.
+     *
+     * If the page number is missing or invalid, start from the
+     * beginning. Shared with the pagination, so both read the same page.
+     *
+     * @param request The current HTTP request.
+     * @return The page number, starting at 1.
+     */
+    static long getPageNumber(SlingHttpServletRequest request) {
+        long page = 1L;
 
         String param = request.getParameter(PAGINATION_PARAMETER);
 
         if (param != null) {
             try {
-                offset = Long.valueOf(param);
+                page = Long.valueOf(param);
             } catch (NumberFormatException e) {
-                LOGGER.error("Could not get offset", e);
+                LOGGER.error("Could not get page number", e);
             }
         }
 
-        if (offset <= 1) {
-            return 0L;
-        } else {
-            return (offset - 1) * postsPerPage;
-        }
+        return Math.max(page, 1L);
     }
 }
\ No newline at end of file
@@ -1,11 +1,13 @@
 package com.rpgm.online.components.foundation;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
 
+import org.apache.commons.lang.CharEncoding;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.models.annotations.Model;
@@ -14,6 +16,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rpgm.online.services.BlogService;
+import com.rpgm.online.services.PostPage;
 
 /**
  * Sightly component for blog list/digest view pagination.
@@ -26,6 +29,12 @@ public class BlogPagination {
      */
     private static final String PAGINATION_PARAMETER = "page";
 
+    /**
+     * The querystring parameter holding the cursor of the last post
+     * on the previous page.
+     */
+    private static final String CURSOR_PARAMETER = "after";
+
     /**
      * The component property name which sets the page size.
      */
@@ -36,11 +45,27 @@ public class BlogPagination {
      */
     private static final int DEFAULT_PAGE_SIZE = 5;
 
+    /**
+     * The component property name which sets the number of page links
+     * to show on each side of the current page.
+     */
+    private static final String RADIUS_PROPERTY = "radius";
+
+    /**
+     * The default radius, negative to show links to all pages.
+     */
+    private static final int DEFAULT_RADIUS = -1;
+
     /**
      * The URL segment for the pagination querystring.
      */
     private static final String PAGE_QUERYSTRING = "?" + PAGINATION_PARAMETER + "=";
 
+    /**
+     * The URL segment for the cursor querystring.
+     */
+    private static final String CURSOR_QUERYSTRING = "&" + CURSOR_PARAMETER + "=";
+
     @OSGiService
     private BlogService blogService = null;
 
@@ -53,16 +78,27 @@ public class BlogPagination {
      */
     private int pageSize = DEFAULT_PAGE_SIZE;
 
+    /**
+     * The number of page links on each side of the current page. Set in
+     * the component.
+     */
+    private int radius = DEFAULT_RADIUS;
+
     /**
      * The current page index.
      */
-    private int currentPage = 0;
+    private long currentPage = 0;
 
     /**
      * The total number of pages.
      */
     private long totalPages = 0;
 
+    /**
+     * The current page of blog posts, shared with the blog list component.
+     */
+    private PostPage postPage;
+
     /**
      * The logger.
      */
@@ -72,48 +108,17 @@ public class BlogPagination {
         this.request = request;
         ValueMap properties = request.getResource().adaptTo(ValueMap.class);
         pageSize = properties.get(PAGE_SIZE_PROPERTY, Integer.class);
+        radius = properties.get(RADIUS_PROPERTY, DEFAULT_RADIUS);
     }
 
     @PostConstruct()
     private void post() {
-        currentPage = getCurrentIndex();
-        totalPages = getTotalPageCount();
-    }
-
-    /**
-     * Get the total page count taking posts per page into account.
-     *
-     * @return The total page count.
-     */
-    private long getTotalPageCount() {
-        long pages = 0;
+        currentPage = BlogList.getPageNumber(request);
 
         if (blogService != null) {
-            pages = blogService.getNumberOfPages(request, pageSize);
-        }
-
-        return pages;
-    }
-
-    /**
-     * Get the current page index, defaults to 1.
-     *
-     * @return The current page index.
-     */
-    private int getCurrentIndex() {
-        int offset = 1;
-
-        String param = request.getParameter(PAGINATION_PARAMETER);
-
-        if (param != null) {
-            try {
-                offset = Integer.valueOf(param);
-            } catch (NumberFormatException e) {
-                LOGGER.error("Could not get offset", e);
-            }
+            postPage = blogService.getPublishedPage(request, currentPage, request.getParameter(CURSOR_PARAMETER), pageSize);
+            totalPages = postPage.getTotalPages();
         }
-
-       return offset;
     }
 
     /**
@@ -121,7 +126,7 @@ public class BlogPagination {
      *
      * @return The current page number.
      */
-    public int getCurrentPage() {
+    public long getCurrentPage() {
         return currentPage;
     }
 
@@ -149,7 +154,7 @@ public class BlogPagination {
      * @return True if the current page is the last page.
      */
     public boolean getLastPage() {
-        return currentPage == totalPages;
+        return currentPage >= totalPages;
     }
 
     /**
@@ -164,30 +169,68 @@ public class BlogPagination {
     /**
      * Get the path to the next page.
      *
+     * The path carries the cursor of the last post on the current page
+     * so that the next page can be fetched without skipping the posts
+     * of all preceding pages.
+     *
      * @return The path to the next page.
      */
     public String getNextPath() {
-        return request.getRequestURI() + PAGE_QUERYSTRING + (currentPage + 1);
+        String path = request.getRequestURI() + PAGE_QUERYSTRING + (currentPage + 1);
+        String cursor = postPage != null ? postPage.getNextCursor() : null;
+
+        if (cursor != null) {
+            try {
+                path += CURSOR_QUERYSTRING + URLEncoder.encode(cursor, CharEncoding.UTF_8);
+            } catch (UnsupportedEncodingException e) {
+                LOGGER.error("Could not encode cursor", e);
+            }
+        }
+
+        return path;
     }
 
     /**
      * Get the list of pages and their paths.
      *
      * The list includes the index, whether the page is the current page
-     * and the path of the page.
+     * and the path of the page. With a radius set on the component, only
+     * the first and last pages and the pages within the radius of the
+     * current page are listed, with gap markers for the pages left out.
+     * A current page beyond the last page is windowed as the last page.
      *
      * @return The list of pages and their paths.
      */
-    public List<HashMap<String, Object>> getPages() {
-        List<HashMap<String, Object>> pages = new ArrayList<>();
+    public List<PageLink> getPages() {
+        List<PageLink> pages = new ArrayList<>();
         String path = request.getRequestURI();
+        long windowStart = 1;
+        long windowEnd = totalPages;
+        long windowCenter = Math.max(1, Math.min(currentPage, totalPages));
 
-        for (int x = 1; x <= totalPages; x++) {
-            HashMap<String, Object> map = new HashMap<>();
-            map.put("page", x);
-            map.put("path", path + PAGE_QUERYSTRING + x);
-            map.put("current", x == currentPage);
-            pages.add(map);
+        if (radius >= 0) {
+            windowStart = Math.max(1, windowCenter - radius);
+            windowEnd = Math.min(totalPages, windowCenter + radius);
+
+            if (windowStart > 1) {
+                pages.add(new PageLink(1, path + PAGE_QUERYSTRING + 1, currentPage == 1));
+            }
+            if (windowStart > 2) {
+                pages.add(PageLink.GAP);
+            }
+        }
+
+        for (long x = windowStart; x <= windowEnd; x++) {
+            pages.add(new PageLink(x, path + PAGE_QUERYSTRING + x, x == currentPage));
+        }
+
+        if (radius >= 0) {
+            if (windowEnd < totalPages - 1) {
+                pages.add(PageLink.GAP);
+            }
+            if (windowEnd < totalPages) {
+                pages.add(new PageLink(totalPages, path + PAGE_QUERYSTRING + totalPages, currentPage == totalPages));
+            }
         }
 
         return pages;
@@ -1,41 +1,47 @@
 package com.rpgm.online.components.foundation;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import javax.annotation.PostConstruct;
 
-import org.apache.commons.lang.StringUtils;
-import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.models.annotations.Model;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
 
-import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.Comment;
+import com.rpgm.online.services.CommentPage;
+import com.rpgm.online.services.CommentService;
 
 /**
- * Backing for Sightly CommentsView component. Returns collection of comments
- * two levels deep. Each comment has an author, comment, and display date.
+ * Backing for Sightly CommentsView component. Returns the first page of
+ * comments, oldest first, with their replies nested a few levels deep as
+ * long as the thread of a comment is short. Each comment has an author,
+ * comment, display date and number of replies.
+ * Further comments and their replies are loaded on demand from the comments
+ * JSON. The comments are read through the Comment Service, which caches them.
  */
 @Model(adaptables = Resource.class)
 public class CommentsView {
 
     /**
-     * Logger to log errors.
+     * Comments rendered with the page.
      */
-    private static final Logger LOGGER = LoggerFactory.getLogger(CommentsView.class);
+    private static final int COMMENTS_PER_PAGE = 10;
 
     /**
-     * Date format for comments.
+     * The maximum number of replies rendered with a comment, at any depth.
      */
-    private static final String DISPLAY_DATE_FORMAT = "MMMM dd, yyyy 'at' hh:mm a";
+    private static final int MAX_INLINE_REPLIES = 10;
 
+    /**
+     * The maximum depth of replies rendered with a comment.
+     */
+    private static final int MAX_INLINE_DEPTH = 3;
+
+    /**
+     * The selector and extension of the comments JSON.
+     */
+    private static final String COMMENTS_JSON_SUFFIX = ".comments.json";
 
     /**
      * The current blog post resource.
@@ -43,14 +49,20 @@ public class CommentsView {
     private Resource blogResource;
 
     /**
-     * The collection of comments.
+     * Service providing the comment tree of the blog post.
      */
-    private List<HashMap<String, Object>> comments;
+    @OSGiService
+    private CommentService commentService = null;
 
     /**
-     * The number of comments
+     * The first page of comments of the blog post.
      */
-    private int count = 0;
+    private CommentPage commentPage;
+
+    /**
+     * The first page of comments with the replies rendered along with them.
+     */
+    private List<InlineComment> comments;
 
     public CommentsView(Resource resource) {
         blogResource = resource;
@@ -58,87 +70,92 @@ public class CommentsView {
 
     @PostConstruct
     private void post() {
-        ResourceResolver resolver = blogResource.getResourceResolver();
-        Resource commentsResource =
-            resolver.getResource(blogResource.getPath().replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH));
-        comments = getCommentList(commentsResource, true);
+        commentPage = commentService.getCommentPage(blogResource.getPath(), null, null, COMMENTS_PER_PAGE, false);
+
+        comments = new ArrayList<>(commentPage.getItems().size());
+        for (Comment comment : commentPage.getItems()) {
+            comments.add(countReplies(comment) <= MAX_INLINE_REPLIES
+                ? toInline(comment, 1) : new InlineComment(comment, new ArrayList<InlineComment>()));
+        }
     }
 
     /**
-     * Create the comment list by getting the passed in resource's children and collecting
-     * their author, comment, and jcr:created properties. Replies are a recursive call to
-     * this methods with the children of the resource passed in resource.
+     * Get the first page of the comments list.
      *
-     * @param resource   The root comments resource or the first level comment.
-     * @param getReplies True to get the next level of comments.
-     * @return The collection of comments.
+     * @return The comment list.
      */
-    private List<HashMap<String, Object>> getCommentList(Resource resource, boolean getReplies) {
-        List<HashMap<String, Object>> comments = new ArrayList<HashMap<String, Object>>();
-
-        if (resource != null) {
-            Iterator<Resource> iterator = resource.listChildren();
-
-            while (iterator.hasNext()) {
-                count++;
-
-                Resource commentResource = iterator.next();
-                ValueMap properties = commentResource.adaptTo(ValueMap.class);
-                HashMap<String, Object> commentProperties = new HashMap<String, Object>();
-
-                String author = properties.get("author", String.class);
-                String comment = properties.get("comment", String.class);
-                String date = getDate(properties.get(JcrConstants.JCR_CREATED, Date.class), DISPLAY_DATE_FORMAT);
-
-                if (StringUtils.isNotBlank(author) && StringUtils.isNotBlank(comment) && StringUtils.isNotBlank(date)) {
-                    commentProperties.put("author", author);
-                    commentProperties.put("comment", comment);
-                    commentProperties.put("date", date);
-                    commentProperties.put("path", commentResource.getName());
-                    if (getReplies) {
-                        commentProperties.put("replies", getCommentList(commentResource, false));
-                    }
-                    comments.add(commentProperties);
-                }
-            }
-        }
-
+    public List<InlineComment> getComments() {
         return comments;
     }
 
     /**
-     * Format date in selected format.
+     * Get the number of comments per page.
      *
-     * @param date   The date.
-     * @param format The format.
-     * @return The formatted date.
+     * @return The number of comments per page.
      */
-    private String getDate(final Date date, final String format) {
-        String formattedDate = null;
-
-        if (date != null) {
-            SimpleDateFormat dateFormatter = new SimpleDateFormat(format);
-            formattedDate = dateFormatter.format(date);
-        }
+    public int getPageSize() {
+        return COMMENTS_PER_PAGE;
+    }
 
-        return formattedDate;
+    /**
+     * Get the cursor to load the comments following the first page.
+     *
+     * @return The cursor or null if all comments are on the first page.
+     */
+    public String getNextCursor() {
+        return commentPage.getNextCursor();
     }
 
     /**
-     * Get the comments list.
+     * Get the path of the comments JSON of the blog post.
      *
-     * @return The comment list.
+     * @return The path of the comments JSON.
      */
-    public List<HashMap<String, Object>> getComments() {
-        return comments;
+    public String getCommentsPath() {
+        return blogResource.getPath() + COMMENTS_JSON_SUFFIX;
     }
 
     /**
-     * Get the number of comments.
+     * Get the number of comments as kept on the blog post's comments.
      *
      * @return The number of comments.
      */
-    public int getCount() {
+    public long getCount() {
+        return commentService.getCommentCount(blogResource.getResourceResolver(), blogResource.getPath());
+    }
+
+    /**
+     * Get a comment with its replies down to the maximum depth.
+     *
+     * @param comment The comment.
+     * @param depth The depth of the comment's replies.
+     * @return The comment as rendered.
+     */
+    private static InlineComment toInline(Comment comment, int depth) {
+        List<InlineComment> replies = new ArrayList<>();
+
+        if (depth <= MAX_INLINE_DEPTH) {
+            for (Comment reply : comment.getReplies()) {
+                replies.add(toInline(reply, depth + 1));
+            }
+        }
+
+        return new InlineComment(comment, replies);
+    }
+
+    /**
+     * Count the replies to a comment at any depth.
+     *
+     * @param comment The comment.
+     * @return The number of replies.
+     */
+    private static int countReplies(Comment comment) {
+        int count = comment.getReplyCount();
+
+        for (Comment reply : comment.getReplies()) {
+            count += countReplies(reply);
+        }
+
         return count;
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.rpgm.online.components.foundation;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+
+import com.rpgm.online.services.CommentService;
+
+/**
+ * Backing for the comments of the Sightly blog page. In deferred mode the
+ * blog post is rendered without its comments, which are loaded from the
+ * comments fragment instead so that new comments don't change the blog
+ * post page.
+ */
+@Model(adaptables = Resource.class)
+public class DeferredComments {
+
+    /**
+     * The selector and extension of the comments fragment.
+     */
+    private static final String FRAGMENT_SUFFIX = ".comments.html";
+
+    /**
+     * The current blog post resource.
+     */
+    private Resource blogResource;
+
+    /**
+     * Service providing the comments mode.
+     */
+    @OSGiService
+    private CommentService commentService = null;
+
+    public DeferredComments(Resource resource) {
+        blogResource = resource;
+    }
+
+    /**
+     * Whether the comments are loaded separately from the blog post.
+     *
+     * @return true if the comments are loaded from the comments fragment.
+     */
+    public boolean isDeferred() {
+        return commentService.isDeferred();
+    }
+
+    /**
+     * Get the path of the comments fragment of the blog post.
+     *
+     * @return The path of the comments fragment.
+     */
+    public String getFragmentPath() {
+        return blogResource.getPath() + FRAGMENT_SUFFIX;
+    }
+}
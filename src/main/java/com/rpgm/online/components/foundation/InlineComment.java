@@ -0,0 +1,93 @@
+package com.rpgm.online.components.foundation;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.rpgm.online.services.Comment;
+
+/**
+ * Immutable comment rendered with the blog post, with the replies rendered
+ * along with it. Replies left out are loaded on demand.
+ */
+public final class InlineComment {
+
+    /** The comment. */
+    private final Comment comment;
+
+    /** The replies rendered with the comment. */
+    private final List<InlineComment> replies;
+
+    /**
+     * Create a comment rendered with the blog post.
+     *
+     * @param comment The comment.
+     * @param replies The replies rendered with the comment, empty to load them on demand.
+     */
+    InlineComment(Comment comment, List<InlineComment> replies) {
+        this.comment = comment;
+        this.replies = Collections.unmodifiableList(replies);
+    }
+
+    /**
+     * Get the path of the comment relative to the comments of the blog post.
+     *
+     * @return The relative path of the comment.
+     */
+    public String getPath() {
+        return comment.getPath();
+    }
+
+    /**
+     * Get the comment author.
+     *
+     * @return The author.
+     */
+    public String getAuthor() {
+        return comment.getAuthor();
+    }
+
+    /**
+     * Get the comment text.
+     *
+     * @return The comment.
+     */
+    public String getComment() {
+        return comment.getComment();
+    }
+
+    /**
+     * Get the formatted creation date.
+     *
+     * @return The display date.
+     */
+    public String getDate() {
+        return comment.getDate();
+    }
+
+    /**
+     * Get the replies rendered with the comment.
+     *
+     * @return The replies in order, empty if they are loaded on demand.
+     */
+    public List<InlineComment> getReplies() {
+        return replies;
+    }
+
+    /**
+     * Get the number of replies to the comment.
+     *
+     * @return The number of replies, rendered or not.
+     */
+    public int getReplyCount() {
+        return comment.getReplyCount();
+    }
+
+    /**
+     * Whether the comment has replies that are loaded on demand.
+     *
+     * @return true if the replies aren't rendered with the comment.
+     */
+    public boolean getCollapsed() {
+        return replies.isEmpty() && comment.getReplyCount() > 0;
+    }
+}
@@ -0,0 +1,77 @@
+package com.rpgm.online.components.foundation;
+
+/**
+ * Immutable link to a pagination page, or a gap marker standing in
+ * for the pages left out of a windowed pagination.
+ */
+public final class PageLink {
+
+    /** Gap marker shared by all windowed paginations. */
+    static final PageLink GAP = new PageLink(0, null, false, true);
+
+    /** The page number. */
+    private final long page;
+
+    /** The path to the page. */
+    private final String path;
+
+    /** Whether this is the current page. */
+    private final boolean current;
+
+    /** Whether this is a gap marker rather than a page. */
+    private final boolean gap;
+
+    /**
+     * Create a link to a page.
+     *
+     * @param page The page number.
+     * @param path The path to the page.
+     * @param current Whether this is the current page.
+     */
+    PageLink(long page, String path, boolean current) {
+        this(page, path, current, false);
+    }
+
+    private PageLink(long page, String path, boolean current, boolean gap) {
+        this.page = page;
+        this.path = path;
+        this.current = current;
+        this.gap = gap;
+    }
+
+    /**
+     * Get the page number.
+     *
+     * @return The page number, 0 for a gap marker.
+     */
+    public long getPage() {
+        return page;
+    }
+
+    /**
+     * Get the path to the page.
+     *
+     * @return The path to the page, null for a gap marker.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Whether this is the current page.
+     *
+     * @return true if this is the current page.
+     */
+    public boolean getCurrent() {
+        return current;
+    }
+
+    /**
+     * Whether this is a gap marker.
+     *
+     * @return true if pages were left out in place of this link.
+     */
+    public boolean getGap() {
+        return gap;
+    }
+}
@@ -0,0 +1,23 @@
+package com.rpgm.online.impl.cache;
+
+import java.util.Map;
+
+/**
+ * Service implemented by in-process caches to report their statistics.
+ */
+public interface CacheStatistics {
+
+    /**
+     * Get the name of the cache for reporting.
+     *
+     * @return The name of the cache.
+     */
+    String getCacheName();
+
+    /**
+     * Get the cache statistics such as hits, misses and evictions.
+     *
+     * @return The cache statistics.
+     */
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,83 @@
+package com.rpgm.online.impl.cache;
+
+/**
+ * Immutable rendered page as held by the page cache.
+ */
+public final class CachedPage {
+
+    /** The response content type. */
+    private final String contentType;
+
+    /** The response character encoding. */
+    private final String characterEncoding;
+
+    /** The encoded response body. */
+    private final byte[] body;
+
+    /** When the page was rendered in milliseconds. */
+    private final long rendered;
+
+    /**
+     * Create a cached page.
+     *
+     * @param contentType The response content type.
+     * @param characterEncoding The response character encoding.
+     * @param body The encoded response body.
+     * @param rendered When the page was rendered in milliseconds.
+     */
+    public CachedPage(String contentType, String characterEncoding, byte[] body, long rendered) {
+        this.contentType = contentType;
+        this.characterEncoding = characterEncoding;
+        this.body = body;
+        this.rendered = rendered;
+    }
+
+    /**
+     * Get the response content type.
+     *
+     * @return The response content type.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Get the response character encoding.
+     *
+     * @return The response character encoding.
+     */
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    /**
+     * Get the encoded response body.
+     *
+     * @return The encoded response body.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get when the page was rendered.
+     *
+     * @return When the page was rendered in milliseconds.
+     */
+    public long getRendered() {
+        return rendered;
+    }
+
+    /**
+     * Get the approximate memory used by the page.
+     *
+     * @return The approximate size of the page in bytes.
+     */
+    public long getSize() {
+        return body.length + 2L * (length(contentType) + length(characterEncoding)) + 64;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.rpgm.online.impl.cache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Page store keeping the pages on the heap in an {@link LruCache}
+ * bounded by the size of the pages.
+ */
+public class HeapPageStore implements PageStore {
+
+    /** The stored pages. */
+    private final LruCache<CachedPage> cache;
+
+    /**
+     * Create a heap page store.
+     *
+     * @param maxBytes The maximum size of all stored pages in bytes.
+     */
+    public HeapPageStore(long maxBytes) {
+        cache = new LruCache<>(maxBytes, new LruCache.Weigher<CachedPage>() {
+            @Override
+            public long weigh(CachedPage page) {
+                return page.getSize();
+            }
+        });
+    }
+
+    @Override
+    public CachedPage get(String key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public void put(String key, CachedPage page) {
+        cache.put(key, page);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        return cache.remove(key) != null;
+    }
+
+    @Override
+    public List<String> keys() {
+        return cache.keys();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = cache.getStats();
+        stats.put("storage", "heap");
+
+        return stats;
+    }
+}
@@ -0,0 +1,241 @@
+package com.rpgm.online.impl.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache bounded by the total weight of its values
+ * rather than their number. Hits, misses and evictions are counted for
+ * monitoring.
+ *
+ * @param <V> The type of cached values.
+ */
+public class LruCache<V> {
+
+    /**
+     * Computes the weight of a cached value, usually its approximate size in bytes.
+     *
+     * @param <V> The type of cached values.
+     */
+    public interface Weigher<V> {
+
+        /**
+         * Get the weight of a value.
+         *
+         * @param value The value.
+         * @return The weight of the value.
+         */
+        long weigh(V value);
+    }
+
+    /** The cached values in order of least recently used first. */
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The weigher of cached values. */
+    private final Weigher<V> weigher;
+
+    /** The maximum total weight of the cached values. */
+    private final long maxWeight;
+
+    /** The total weight of the cached values. */
+    private long weight = 0;
+
+    /** The number of lookups that found a value. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups that didn't find a value. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of values evicted to stay under the maximum weight. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param maxWeight The maximum total weight of the cached values.
+     * @param weigher The weigher of cached values.
+     */
+    public LruCache(long maxWeight, Weigher<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get a cached value.
+     *
+     * @param key The key.
+     * @return The cached value or null if not cached.
+     */
+    public V get(String key) {
+        V value;
+
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+
+        (value != null ? hits : misses).incrementAndGet();
+
+        return value;
+    }
+
+    /**
+     * Cache a value, evicting the least recently used values as needed.
+     * Values heavier than the maximum weight are not cached.
+     *
+     * @param key The key.
+     * @param value The value.
+     */
+    public void put(String key, V value) {
+        long valueWeight = weigher.weigh(value);
+
+        synchronized (entries) {
+            remove(key);
+
+            if (valueWeight > maxWeight) {
+                return;
+            }
+
+            entries.put(key, value);
+            weight += valueWeight;
+
+            Iterator<V> eldest = entries.values().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                V evicted = eldest.next();
+                eldest.remove();
+                weight -= weigher.weigh(evicted);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove a cached value.
+     *
+     * @param key The key.
+     * @return The removed value or null if not cached.
+     */
+    public V remove(String key) {
+        synchronized (entries) {
+            V value = entries.remove(key);
+
+            if (value != null) {
+                weight -= weigher.weigh(value);
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * Remove all cached values.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Get a snapshot of the cached keys.
+     *
+     * @return The cached keys.
+     */
+    public List<String> keys() {
+        synchronized (entries) {
+            return new ArrayList<>(entries.keySet());
+        }
+    }
+
+    /**
+     * Get the number of cached values.
+     *
+     * @return The number of cached values.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the total weight of the cached values.
+     *
+     * @return The total weight of the cached values.
+     */
+    public long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    /**
+     * Get the maximum total weight of the cached values.
+     *
+     * @return The maximum total weight.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Get the number of lookups that found a value.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that didn't find a value.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of values evicted to stay under the maximum weight.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the ratio of lookups that found a value.
+     *
+     * @return The hit rate between 0 and 1.
+     */
+    public double getHitRate() {
+        long found = hits.get();
+        long total = found + misses.get();
+
+        return total > 0 ? (double)found / total : 0;
+    }
+
+    /**
+     * Get a map of the cache statistics for reporting.
+     *
+     * @return The cache statistics.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", size());
+        stats.put("weight", getWeight());
+        stats.put("maxWeight", maxWeight);
+        stats.put("hits", getHits());
+        stats.put("misses", getMisses());
+        stats.put("evictions", getEvictions());
+        stats.put("hitRate", getHitRate());
+
+        return stats;
+    }
+}
@@ -0,0 +1,364 @@
+package com.rpgm.online.impl.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Page store keeping the page bodies outside of the heap in direct
+ * {@link ByteBuffer} slabs, so that a large cache doesn't grow the old
+ * generation or the garbage collection pauses. Only the keys and a small
+ * descriptor per page stay on the heap.
+ *
+ * <p>Slabs are allocated on demand up to the maximum size and each slab is
+ * cut into equally sized chunks of one size class. A page body is stored in
+ * one chunk of the smallest class it fits. When a class has no free chunk
+ * and no slab can be allocated, the least recently used page of all classes
+ * makes room: a page of the same class is evicted, otherwise its slab is
+ * emptied and cut again for the class. A slab without pages is moved first.
+ * Slabs so follow the sizes of the pages being cached instead of staying
+ * with the class that first allocated them. Pages larger than a slab are
+ * not stored.</p>
+ *
+ * <p>The statistics report the bytes used by page bodies against the bytes
+ * of the chunks holding them; the difference is the internal fragmentation
+ * of the size classes.</p>
+ */
+public class OffHeapPageStore implements PageStore {
+
+    /** The size of the smallest chunks in bytes. */
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    /** The growth factor between the chunk sizes of consecutive classes. */
+    private static final double GROWTH_FACTOR = 1.25;
+
+    /** The alignment of the chunk sizes in bytes. */
+    private static final int ALIGNMENT = 64;
+
+    /** The size of a slab in bytes. */
+    private final int slabSize;
+
+    /** The maximum number of slabs. */
+    private final int maxSlabs;
+
+    /** The chunk size of each size class in ascending order. */
+    private final int[] chunkSizes;
+
+    /** The free chunks of each size class as slab index and offset. */
+    private final List<ArrayDeque<Long>> freeChunks = new ArrayList<>();
+
+    /** The allocated slabs. */
+    private final List<Slab> slabs = new ArrayList<>();
+
+    /** The stored pages in access order. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The bytes of the stored page bodies. */
+    private long usedBytes;
+
+    /** The bytes of the chunks holding the stored page bodies. */
+    private long chunkBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long slabMoves;
+
+    /**
+     * Create an off-heap page store.
+     *
+     * @param maxBytes The maximum size of all slabs in bytes.
+     * @param slabSize The size of a slab in bytes, which is also the size
+     *                 of the largest page that can be stored.
+     */
+    public OffHeapPageStore(long maxBytes, int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Slab size must be at least " + MIN_CHUNK_SIZE + " bytes");
+        }
+
+        this.slabSize = slabSize;
+        this.maxSlabs = (int)Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / slabSize));
+
+        List<Integer> sizes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < slabSize) {
+            sizes.add(size);
+            size = (int)Math.ceil(size * GROWTH_FACTOR / ALIGNMENT) * ALIGNMENT;
+        }
+        sizes.add(slabSize);
+
+        chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+            freeChunks.add(new ArrayDeque<Long>());
+        }
+    }
+
+    @Override
+    public synchronized CachedPage get(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+
+        byte[] body = new byte[entry.length];
+        ByteBuffer view = slabs.get(slabIndex(entry.chunk)).buffer.duplicate();
+        view.position(offset(entry.chunk));
+        view.get(body);
+
+        return new CachedPage(entry.contentType, entry.characterEncoding, body, entry.rendered);
+    }
+
+    @Override
+    public synchronized void put(String key, CachedPage page) {
+        release(entries.remove(key));
+
+        byte[] body = page.getBody();
+        int sizeClass = getSizeClass(body.length);
+
+        if (sizeClass < 0) {
+            rejections++;
+            return;
+        }
+
+        long chunk = allocate(sizeClass);
+
+        if (chunk < 0) {
+            rejections++;
+            return;
+        }
+
+        Slab slab = slabs.get(slabIndex(chunk));
+        ByteBuffer view = slab.buffer.duplicate();
+        view.position(offset(chunk));
+        view.put(body);
+
+        entries.put(key, new Entry(sizeClass, chunk, body.length, page.getContentType(),
+            page.getCharacterEncoding(), page.getRendered()));
+        slab.pages++;
+        usedBytes += body.length;
+        chunkBytes += chunkSizes[sizeClass];
+    }
+
+    @Override
+    public synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        release(entry);
+
+        return entry != null;
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public synchronized Map<String, Object> getStats() {
+        long slabBytes = (long)slabs.size() * slabSize;
+        long requests = hits + misses;
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("storage", "offheap");
+        stats.put("entries", entries.size());
+        stats.put("slabs", slabs.size());
+        stats.put("maxSlabs", maxSlabs);
+        stats.put("slabBytes", slabBytes);
+        stats.put("usedBytes", usedBytes);
+        stats.put("chunkBytes", chunkBytes);
+        stats.put("freeBytes", slabBytes - chunkBytes);
+        stats.put("fragmentedBytes", chunkBytes - usedBytes);
+        stats.put("fragmentation", chunkBytes > 0 ? (double)(chunkBytes - usedBytes) / chunkBytes : 0d);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", requests > 0 ? (double)hits / requests : 0d);
+        stats.put("evictions", evictions);
+        stats.put("rejections", rejections);
+        stats.put("slabMoves", slabMoves);
+
+        return stats;
+    }
+
+    /**
+     * Get the smallest size class with chunks that fit the given length.
+     *
+     * @param length The length in bytes.
+     * @return The size class or -1 if the length exceeds the slab size.
+     */
+    private int getSizeClass(int length) {
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (length <= chunkSizes[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Allocate a chunk of a size class, taking a free chunk, cutting a new
+     * slab, moving a slab without pages to the class or making room in place
+     * of the least recently used page.
+     *
+     * @param sizeClass The size class.
+     * @return The chunk or -1 if no chunk of the class could be allocated.
+     */
+    private long allocate(int sizeClass) {
+        ArrayDeque<Long> free = freeChunks.get(sizeClass);
+
+        if (free.isEmpty() && slabs.size() < maxSlabs) {
+            slabs.add(new Slab(ByteBuffer.allocateDirect(slabSize)));
+            cut(slabs.size() - 1, sizeClass);
+        }
+
+        if (free.isEmpty()) {
+            for (int i = 0; i < slabs.size(); i++) {
+                if (slabs.get(i).pages == 0) {
+                    move(i, sizeClass);
+                    break;
+                }
+            }
+        }
+
+        if (free.isEmpty() && !entries.isEmpty()) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            Entry eldest = iterator.next();
+
+            if (eldest.sizeClass == sizeClass) {
+                iterator.remove();
+                release(eldest);
+                evictions++;
+            } else {
+                move(slabIndex(eldest.chunk), sizeClass);
+            }
+        }
+
+        return free.isEmpty() ? -1 : free.poll();
+    }
+
+    /**
+     * Move a slab to another size class, evicting its pages and dropping
+     * its free chunks from its previous class.
+     *
+     * @param slabIndex The index of the slab.
+     * @param sizeClass The size class to cut the slab for.
+     */
+    private void move(int slabIndex, int sizeClass) {
+        Slab slab = slabs.get(slabIndex);
+
+        if (slab.pages > 0) {
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (iterator.hasNext() && slab.pages > 0) {
+                Entry entry = iterator.next();
+
+                if (slabIndex(entry.chunk) == slabIndex) {
+                    iterator.remove();
+                    usedBytes -= entry.length;
+                    chunkBytes -= chunkSizes[entry.sizeClass];
+                    slab.pages--;
+                    evictions++;
+                }
+            }
+        }
+
+        Iterator<Long> chunks = freeChunks.get(slab.sizeClass).iterator();
+
+        while (chunks.hasNext()) {
+            if (slabIndex(chunks.next()) == slabIndex) {
+                chunks.remove();
+            }
+        }
+
+        cut(slabIndex, sizeClass);
+        slabMoves++;
+    }
+
+    /**
+     * Cut a slab into free chunks of a size class.
+     *
+     * @param slabIndex The index of the slab.
+     * @param sizeClass The size class.
+     */
+    private void cut(int slabIndex, int sizeClass) {
+        ArrayDeque<Long> free = freeChunks.get(sizeClass);
+        int chunkSize = chunkSizes[sizeClass];
+
+        slabs.get(slabIndex).sizeClass = sizeClass;
+        for (int offset = 0; offset + chunkSize <= slabSize; offset += chunkSize) {
+            free.add(chunk(slabIndex, offset));
+        }
+    }
+
+    /**
+     * Return the chunk of a removed page to the free chunks of its class.
+     *
+     * @param entry The removed page or null.
+     */
+    private void release(Entry entry) {
+        if (entry != null) {
+            freeChunks.get(entry.sizeClass).push(entry.chunk);
+            slabs.get(slabIndex(entry.chunk)).pages--;
+            usedBytes -= entry.length;
+            chunkBytes -= chunkSizes[entry.sizeClass];
+        }
+    }
+
+    private static long chunk(int slabIndex, int offset) {
+        return ((long)slabIndex << 32) | offset;
+    }
+
+    private static int slabIndex(long chunk) {
+        return (int)(chunk >>> 32);
+    }
+
+    private static int offset(long chunk) {
+        return (int)chunk;
+    }
+
+    /**
+     * A slab with the size class it is cut for and the number of pages
+     * stored in its chunks.
+     */
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+        private int sizeClass;
+        private int pages;
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * On-heap descriptor of a page stored in a chunk.
+     */
+    private static final class Entry {
+
+        private final int sizeClass;
+        private final long chunk;
+        private final int length;
+        private final String contentType;
+        private final String characterEncoding;
+        private final long rendered;
+
+        Entry(int sizeClass, long chunk, int length, String contentType, String characterEncoding, long rendered) {
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.rendered = rendered;
+        }
+    }
+}
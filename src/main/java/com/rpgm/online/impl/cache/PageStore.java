@@ -0,0 +1,48 @@
+package com.rpgm.online.impl.cache;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of rendered pages for the page cache.
+ */
+public interface PageStore {
+
+    /**
+     * Get a stored page.
+     *
+     * @param key The key.
+     * @return The stored page or null if not stored.
+     */
+    CachedPage get(String key);
+
+    /**
+     * Store a page, evicting the least recently used pages as needed.
+     *
+     * @param key The key.
+     * @param page The page.
+     */
+    void put(String key, CachedPage page);
+
+    /**
+     * Remove a stored page.
+     *
+     * @param key The key.
+     * @return true if a page was removed.
+     */
+    boolean remove(String key);
+
+    /**
+     * Get a snapshot of the stored keys.
+     *
+     * @return The stored keys.
+     */
+    List<String> keys();
+
+    /**
+     * Get the storage statistics such as hits, misses and evictions.
+     *
+     * @return The storage statistics.
+     */
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,131 @@
+package com.rpgm.online.impl.filters;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+/**
+ * Response wrapper that passes the written characters through to the
+ * wrapped response while keeping a copy of them. The copy is only usable
+ * if the response was written through the writer and wasn't an error or
+ * redirect.
+ */
+public class CaptureResponseWrapper extends SlingHttpServletResponseWrapper {
+
+    /** The copy of the written characters. */
+    private final StringWriter capture = new StringWriter();
+
+    /** The writer handed out to the rendering script. */
+    private PrintWriter writer;
+
+    /** Whether the copy holds the complete successful response. */
+    private boolean capturable = true;
+
+    /**
+     * Create the wrapper.
+     *
+     * @param response The response to wrap.
+     */
+    public CaptureResponseWrapper(SlingHttpServletResponse response) {
+        super(response);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new TeeWriter(super.getWriter(), capture));
+        }
+
+        return writer;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        capturable = false;
+        return super.getOutputStream();
+    }
+
+    @Override
+    public void setStatus(int status) {
+        capturable &= status == HttpServletResponse.SC_OK;
+        super.setStatus(status);
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+        capturable = false;
+        super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+        capturable = false;
+        super.sendError(status, message);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        capturable = false;
+        super.sendRedirect(location);
+    }
+
+    /**
+     * Whether the copy holds the complete successful response.
+     *
+     * @return true if the copy can be cached.
+     */
+    public boolean isCapturable() {
+        return capturable;
+    }
+
+    /**
+     * Get the copy of the written characters.
+     *
+     * @return The written characters.
+     */
+    public String getCapturedContent() {
+        if (writer != null) {
+            writer.flush();
+        }
+
+        return capture.toString();
+    }
+
+    /**
+     * Writer that writes to two writers.
+     */
+    private static final class TeeWriter extends Writer {
+
+        private final Writer first;
+
+        private final Writer second;
+
+        TeeWriter(Writer first, Writer second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            first.write(buffer, offset, length);
+            second.write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
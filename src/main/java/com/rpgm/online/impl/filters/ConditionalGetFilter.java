@@ -0,0 +1,351 @@
+package com.rpgm.online.impl.filters;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.Constants;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.CommentService;
+import com.rpgm.online.services.PublishedPostIndex;
+import com.rpgm.online.services.SystemSettingsService;
+import com.rpgm.online.services.UserService;
+
+/**
+ * Request filter answering conditional GET requests for blog posts and the
+ * blog list with 304 Not Modified before anything is rendered. Blog posts
+ * are validated by their own modification, the modification of their
+ * comments node and the settings version, which are all kept in the
+ * repository so every instance sends the same validators. The blog list is validated by the
+ * last change of the published blog posts and the settings version.
+ * With deferred comments blog posts are validated without their comments
+ * and may be cached by clients for longer, while the comments fragment is
+ * validated by the comments only and cached for a short time. Authors
+ * always get a full response as their pages differ from the ones rendered
+ * for readers.
+ */
+@Service(value = Filter.class)
+@Component(metatype = true,
+           name = "RPGM conditional GET",
+           description = "Answers conditional GET requests for blog pages with 304 Not Modified.")
+@Properties({
+    @Property(name = ConditionalGetFilter.ENABLED,
+              boolValue = ConditionalGetFilter.DEFAULT_ENABLED,
+              label = "Enabled",
+              description = "Send ETag and Last-Modified headers and answer conditional requests."),
+    @Property(name = ConditionalGetFilter.POST_MAX_AGE,
+              intValue = ConditionalGetFilter.DEFAULT_POST_MAX_AGE,
+              label = "Blog post max age",
+              description = "How long in seconds clients may cache blog posts when comments are deferred."),
+    @Property(name = ConditionalGetFilter.COMMENTS_MAX_AGE,
+              intValue = ConditionalGetFilter.DEFAULT_COMMENTS_MAX_AGE,
+              label = "Comments max age",
+              description = "How long in seconds clients may cache the comments fragment when comments are deferred."),
+    @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
+    @Property(name = Constants.SERVICE_RANKING, intValue = 200, propertyPrivate = true)
+})
+public class ConditionalGetFilter implements Filter {
+
+    /** OSGi property name for enabled */
+    static final String ENABLED = "conditional.enabled";
+
+    /** Default value for enabled */
+    static final boolean DEFAULT_ENABLED = true;
+
+    /** OSGi property name for the max age of blog posts */
+    static final String POST_MAX_AGE = "conditional.postMaxAge";
+
+    /** Default max age of blog posts */
+    static final int DEFAULT_POST_MAX_AGE = 600;
+
+    /** OSGi property name for the max age of the comments fragment */
+    static final String COMMENTS_MAX_AGE = "conditional.commentsMaxAge";
+
+    /** Default max age of the comments fragment */
+    static final int DEFAULT_COMMENTS_MAX_AGE = 30;
+
+    /** The selector of the comments of a blog post. */
+    private static final String COMMENTS_SELECTOR = "comments";
+
+    /** The user ID of readers that are not logged in. */
+    private static final String ANONYMOUS_USER = "anonymous";
+
+    /** Separates the parts of an entity tag. */
+    private static final char TAG_SEPARATOR = '-';
+
+    /** Prefix of weak entity tags. */
+    private static final String WEAK_PREFIX = "W/";
+
+    /** Service to determine if the current user is an author. */
+    @Reference
+    private UserService userService;
+
+    /** Service providing the last change of the published blog posts. */
+    @Reference
+    private PublishedPostIndex publishedPostIndex;
+
+    /** Service providing the comments mode. */
+    @Reference
+    private CommentService commentService;
+
+    /** Service providing the settings version. */
+    @Reference
+    private SystemSettingsService systemSettingsService;
+
+    /** Whether conditional requests are answered. */
+    private boolean enabled = DEFAULT_ENABLED;
+
+    /** How long in seconds clients may cache blog posts with deferred comments. */
+    private int postMaxAge = DEFAULT_POST_MAX_AGE;
+
+    /** How long in seconds clients may cache the comments fragment. */
+    private int commentsMaxAge = DEFAULT_COMMENTS_MAX_AGE;
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        enabled = PropertiesUtil.toBoolean(properties.get(ENABLED), DEFAULT_ENABLED);
+        postMaxAge = PropertiesUtil.toInteger(properties.get(POST_MAX_AGE), DEFAULT_POST_MAX_AGE);
+        commentsMaxAge = PropertiesUtil.toInteger(properties.get(COMMENTS_MAX_AGE), DEFAULT_COMMENTS_MAX_AGE);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    /**
+     * Send the validators of blog posts and the blog list, answering with
+     * 304 Not Modified if the client's copy is still current.
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        if (!enabled || !(request instanceof SlingHttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest)request;
+        SlingHttpServletResponse slingResponse = (SlingHttpServletResponse)response;
+        long[] versions = getVersions(slingRequest);
+
+        if (versions == null || !isReader(slingRequest.getResourceResolver())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String etag = getEntityTag(versions);
+        long lastModified = 0;
+        for (long version : versions) {
+            lastModified = Math.max(lastModified, version);
+        }
+
+        slingResponse.setHeader("ETag", etag);
+        slingResponse.setDateHeader("Last-Modified", lastModified);
+
+        int maxAge = getMaxAge(slingRequest);
+        if (maxAge > 0) {
+            slingResponse.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        }
+
+        if (isNotModified(slingRequest, etag, lastModified)) {
+            slingResponse.setStatus(SlingHttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Get the versions the requested page is rendered from.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return The versions in milliseconds or null if the page isn't validated.
+     */
+    private long[] getVersions(SlingHttpServletRequest request) {
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            return null;
+        }
+
+        Resource resource = request.getResource();
+        long settingsVersion = systemSettingsService.getVersion();
+
+        if (RPGMConstants.BLOG_PATH.equals(resource.getPath())) {
+            return publishedPostIndex.isReady()
+                ? new long[] {publishedPostIndex.getLastModified(), settingsVersion}
+                : null;
+        }
+
+        if (RPGMConstants.PAGE_TYPE_BLOG.equals(resource.getResourceType()) && commentService.isDeferred()) {
+            return isComments(request)
+                ? new long[] {getCommentsLastModified(resource), settingsVersion}
+                : new long[] {getLastModified(resource), settingsVersion};
+        }
+
+        if (RPGMConstants.PAGE_TYPE_BLOG.equals(resource.getResourceType())) {
+            return new long[] {getLastModified(resource),
+                               getCommentsLastModified(resource),
+                               settingsVersion};
+        }
+
+        return null;
+    }
+
+    /**
+     * Get how long clients may cache the requested blog page. Only blog
+     * posts and their comments with deferred comments have a max age.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return The max age in seconds, 0 for none.
+     */
+    private int getMaxAge(SlingHttpServletRequest request) {
+        if (!RPGMConstants.PAGE_TYPE_BLOG.equals(request.getResource().getResourceType())
+                || !commentService.isDeferred()) {
+            return 0;
+        }
+
+        return isComments(request) ? commentsMaxAge : postMaxAge;
+    }
+
+    /**
+     * Whether the request is for the comments of a blog post.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return true if the first selector is the comments selector.
+     */
+    private static boolean isComments(SlingHttpServletRequest request) {
+        String[] selectors = request.getRequestPathInfo().getSelectors();
+
+        return selectors.length > 0 && COMMENTS_SELECTOR.equals(selectors[0]);
+    }
+
+    /**
+     * Whether the current user gets the page rendered for readers.
+     *
+     * @param resolver The request's resource resolver.
+     * @return true if the user isn't an author.
+     */
+    private boolean isReader(ResourceResolver resolver) {
+        return ANONYMOUS_USER.equals(resolver.getUserID()) || !userService.isAuthorable(resolver);
+    }
+
+    /**
+     * Whether the client's copy matches the current validators. An
+     * If-None-Match header takes precedence over If-Modified-Since.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param etag The current entity tag.
+     * @param lastModified The current last modification in milliseconds.
+     * @return true if the client's copy is current.
+     */
+    private boolean isNotModified(SlingHttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith(WEAK_PREFIX)) {
+                    tag = tag.substring(WEAK_PREFIX.length());
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the entity tag for the given versions.
+     *
+     * @param versions The versions in milliseconds.
+     * @return The quoted entity tag.
+     */
+    private static String getEntityTag(long[] versions) {
+        StringBuilder etag = new StringBuilder("\"");
+
+        for (int i = 0; i < versions.length; i++) {
+            if (i > 0) {
+                etag.append(TAG_SEPARATOR);
+            }
+            etag.append(Long.toString(versions[i], Character.MAX_RADIX));
+        }
+
+        return etag.append('"').toString();
+    }
+
+    /**
+     * Get the last modification of the comments of a blog post, kept on
+     * the comments node at the same relative path under the comments path
+     * as the post under the blog path.
+     *
+     * @param resource The blog post resource.
+     * @return The last modification in milliseconds or 0 if the post has no comments.
+     */
+    private static long getCommentsLastModified(Resource resource) {
+        Resource comments = resource.getResourceResolver().getResource(
+            resource.getPath().replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH));
+
+        return comments != null ? getLastModified(comments) : 0;
+    }
+
+    /**
+     * Get the last modification of a blog post or comments node, falling
+     * back to its creation if it hasn't been changed since it was tracked.
+     *
+     * @param resource The blog post or comments resource.
+     * @return The last modification in milliseconds or 0 if unknown.
+     */
+    private static long getLastModified(Resource resource) {
+        ValueMap properties = resource.adaptTo(ValueMap.class);
+
+        if (properties == null) {
+            return 0;
+        }
+
+        Calendar modified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        if (modified == null) {
+            modified = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+        }
+
+        return modified != null ? modified.getTimeInMillis() : 0;
+    }
+}
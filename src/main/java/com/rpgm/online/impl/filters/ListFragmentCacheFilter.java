@@ -0,0 +1,237 @@
+package com.rpgm.online.impl.filters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.impl.cache.LruCache;
+
+/**
+ * Include filter caching the HTML of blog posts rendered with the "list"
+ * selector, as included once per post by the blog list. Fragments are
+ * keyed by post path and checked against the post's last modification.
+ * Fragments of changed posts are evicted on resource events and the cache
+ * is bounded by the size of the fragments. Fragments rendered while a post
+ * changed aren't cached, as they may have been rendered before the change
+ * and be put back after the eviction.
+ */
+@Service(value = {Filter.class, EventHandler.class, CacheStatistics.class})
+@Component(metatype = true,
+           name = "RPGM list fragment cache",
+           description = "Caches the blog post HTML fragments rendered in the blog list.")
+@Properties({
+    @Property(name = ListFragmentCacheFilter.MAX_BYTES,
+              longValue = ListFragmentCacheFilter.DEFAULT_MAX_BYTES,
+              label = "Maximum size",
+              description = "The maximum size of all cached fragments in bytes."),
+    @Property(name = "sling.filter.scope", value = "INCLUDE", propertyPrivate = true),
+    @Property(name = Constants.SERVICE_RANKING, intValue = 0, propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC,
+              value = {SlingConstants.TOPIC_RESOURCE_ADDED,
+                       SlingConstants.TOPIC_RESOURCE_CHANGED,
+                       SlingConstants.TOPIC_RESOURCE_REMOVED},
+              propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+              value = "(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.BLOG_PATH + "/*)",
+              propertyPrivate = true)
+})
+public class ListFragmentCacheFilter implements Filter, EventHandler, CacheStatistics {
+
+    /** OSGi property name for the maximum size of all cached fragments */
+    static final String MAX_BYTES = "cache.maxBytes";
+
+    /** Default maximum size of all cached fragments */
+    static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListFragmentCacheFilter.class);
+
+    /** Selector of blog posts rendered in the blog list. */
+    private static final String LIST_VIEW_SELECTOR = "list";
+
+    /** Separates the resource path from the rest of the cache key. */
+    private static final char KEY_SEPARATOR = '|';
+
+    /** Approximate fixed cost of a cache entry in bytes. */
+    private static final long ENTRY_OVERHEAD = 64;
+
+    /** The cached fragments keyed by post path, selectors and extension. */
+    private volatile LruCache<Fragment> cache;
+
+    /** Incremented on every blog post change, so fragments rendered during a change aren't cached. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        long maxBytes = PropertiesUtil.toLong(properties.get(MAX_BYTES), DEFAULT_MAX_BYTES);
+
+        cache = new LruCache<>(maxBytes, new LruCache.Weigher<Fragment>() {
+            @Override
+            public long weigh(Fragment fragment) {
+                return ENTRY_OVERHEAD + 2L * fragment.html.length();
+            }
+        });
+        LOGGER.info("List fragment cache limited to {} bytes", maxBytes);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    /**
+     * Write the cached fragment of a blog post included in list view, or
+     * render it and cache the result.
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        if (!(request instanceof SlingHttpServletRequest) || !isListFragment((SlingHttpServletRequest)request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest)request;
+        Resource resource = slingRequest.getResource();
+        String key = resource.getPath() + KEY_SEPARATOR + slingRequest.getRequestPathInfo().getSelectorString()
+            + KEY_SEPARATOR + slingRequest.getRequestPathInfo().getExtension();
+        long lastModified = getLastModified(resource);
+
+        Fragment fragment = cache.get(key);
+
+        if (fragment != null && fragment.lastModified == lastModified) {
+            response.getWriter().write(fragment.html);
+            return;
+        }
+
+        long renderGeneration = generation.get();
+        CaptureResponseWrapper wrapper = new CaptureResponseWrapper((SlingHttpServletResponse)response);
+        chain.doFilter(request, wrapper);
+
+        if (wrapper.isCapturable() && generation.get() == renderGeneration) {
+            cache.put(key, new Fragment(lastModified, wrapper.getCapturedContent()));
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Evict the fragments of the changed blog post.
+     *
+     * @param event The resource event.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String)event.getProperty(SlingConstants.PROPERTY_PATH);
+
+        if (path == null) {
+            return;
+        }
+
+        generation.incrementAndGet();
+
+        for (String key : cache.keys()) {
+            String keyPath = key.substring(0, key.indexOf(KEY_SEPARATOR));
+
+            if (keyPath.equals(path) || keyPath.startsWith(path + "/") || path.startsWith(keyPath + "/")) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public String getCacheName() {
+        return "listFragments";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Whether the request renders a blog post in list view.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return true if the request renders a blog post in list view.
+     */
+    private boolean isListFragment(SlingHttpServletRequest request) {
+        return RPGMConstants.PAGE_TYPE_BLOG.equals(request.getResource().getResourceType())
+            && Arrays.asList(request.getRequestPathInfo().getSelectors()).contains(LIST_VIEW_SELECTOR);
+    }
+
+    /**
+     * Get the last modification of a blog post, falling back to its
+     * creation for posts that don't track modifications.
+     *
+     * @param resource The blog post resource.
+     * @return The last modification in milliseconds or 0 if unknown.
+     */
+    private long getLastModified(Resource resource) {
+        ValueMap properties = resource.adaptTo(ValueMap.class);
+
+        if (properties == null) {
+            return 0;
+        }
+
+        Calendar modified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        if (modified == null) {
+            modified = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+        }
+
+        return modified != null ? modified.getTimeInMillis() : 0;
+    }
+
+    /**
+     * Cached HTML of a blog post rendered in list view.
+     */
+    private static final class Fragment {
+
+        /** The blog post modification the HTML was rendered from. */
+        private final long lastModified;
+
+        /** The rendered HTML. */
+        private final String html;
+
+        Fragment(long lastModified, String html) {
+            this.lastModified = lastModified;
+            this.html = html;
+        }
+    }
+}
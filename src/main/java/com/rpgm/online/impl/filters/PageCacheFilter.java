@@ -0,0 +1,694 @@
+package com.rpgm.online.impl.filters;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.impl.cache.CachedPage;
+import com.rpgm.online.impl.cache.HeapPageStore;
+import com.rpgm.online.impl.cache.OffHeapPageStore;
+import com.rpgm.online.impl.cache.PageStore;
+import com.rpgm.online.impl.request.InternalRequest;
+import com.rpgm.online.impl.request.InternalResponse;
+import com.rpgm.online.services.CommentService;
+
+/**
+ * Request filter caching the rendered blog list and blog post pages for
+ * anonymous GET requests. Pages are keyed by path, selectors, extension
+ * and pagination parameters. Logged in users always get a fresh render,
+ * as their pages may differ from what anonymous readers see. Cached
+ * pages are invalidated on resource events, which are sent once the
+ * changes of a blog post or comment have been committed. Pages are kept
+ * on the heap or, to cache the whole archive without growing the heap,
+ * in off-heap slabs. Concurrent requests for the same uncached page wait
+ * for a single render and share its result, falling back to rendering on
+ * their own if it doesn't complete in time. In stale-while-revalidate mode
+ * invalidated pages are kept and served while a bounded background pool
+ * renders them again as the anonymous user. With deferred comments a new
+ * comment only invalidates the comments of the blog post, not the post.
+ * Pages rendered while a blog post or comment changed aren't cached, as
+ * they may have been rendered before the change.
+ */
+@Service(value = {Filter.class, EventHandler.class, CacheStatistics.class})
+@Component(metatype = true,
+           name = "RPGM page cache",
+           description = "Caches the blog pages rendered for anonymous readers.")
+@Properties({
+    @Property(name = PageCacheFilter.ENABLED,
+              boolValue = PageCacheFilter.DEFAULT_ENABLED,
+              label = "Enabled",
+              description = "Enable the page cache."),
+    @Property(name = PageCacheFilter.MAX_BYTES,
+              longValue = PageCacheFilter.DEFAULT_MAX_BYTES,
+              label = "Maximum size",
+              description = "The maximum size of all cached pages in bytes."),
+    @Property(name = PageCacheFilter.STORAGE,
+              value = PageCacheFilter.STORAGE_HEAP,
+              label = "Storage",
+              description = "Where the cached pages are kept. Off-heap storage requires "
+                  + "-XX:MaxDirectMemorySize to allow the maximum size.",
+              options = {
+                  @PropertyOption(name = PageCacheFilter.STORAGE_HEAP, value = "Heap"),
+                  @PropertyOption(name = PageCacheFilter.STORAGE_OFF_HEAP, value = "Off-heap slabs")
+              }),
+    @Property(name = PageCacheFilter.SLAB_BYTES,
+              intValue = PageCacheFilter.DEFAULT_SLAB_BYTES,
+              label = "Slab size",
+              description = "The size of an off-heap slab in bytes. Larger pages are not cached."),
+    @Property(name = PageCacheFilter.COALESCE_TIMEOUT,
+              longValue = PageCacheFilter.DEFAULT_COALESCE_TIMEOUT,
+              label = "Coalescing timeout",
+              description = "How long in milliseconds a request waits for a concurrent render of the same "
+                  + "page before rendering on its own. 0 disables coalescing."),
+    @Property(name = PageCacheFilter.STALE_WHILE_REVALIDATE,
+              boolValue = PageCacheFilter.DEFAULT_STALE_WHILE_REVALIDATE,
+              label = "Stale while revalidate",
+              description = "Serve invalidated pages while they are rendered again in the background."),
+    @Property(name = PageCacheFilter.MAX_STALENESS,
+              longValue = PageCacheFilter.DEFAULT_MAX_STALENESS,
+              label = "Maximum staleness",
+              description = "How long in milliseconds an invalidated page may be served."),
+    @Property(name = PageCacheFilter.REVALIDATION_THREADS,
+              intValue = PageCacheFilter.DEFAULT_REVALIDATION_THREADS,
+              label = "Revalidation threads",
+              description = "The number of threads rendering invalidated pages in the background."),
+    @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
+    @Property(name = Constants.SERVICE_RANKING, intValue = 100, propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC,
+              value = {SlingConstants.TOPIC_RESOURCE_ADDED,
+                       SlingConstants.TOPIC_RESOURCE_CHANGED,
+                       SlingConstants.TOPIC_RESOURCE_REMOVED},
+              propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+              value = "(|(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.BLOG_PATH + "/*)"
+                  + "(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.COMMENTS_PATH + "/*))",
+              propertyPrivate = true)
+})
+public class PageCacheFilter implements Filter, EventHandler, CacheStatistics {
+
+    /** OSGi property name for enabled */
+    static final String ENABLED = "cache.enabled";
+
+    /** Default value for enabled */
+    static final boolean DEFAULT_ENABLED = true;
+
+    /** OSGi property name for the maximum size of all cached pages */
+    static final String MAX_BYTES = "cache.maxBytes";
+
+    /** Default maximum size of all cached pages */
+    static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /** OSGi property name for the storage of the cached pages */
+    static final String STORAGE = "cache.storage";
+
+    /** Storage keeping the cached pages on the heap */
+    static final String STORAGE_HEAP = "heap";
+
+    /** Storage keeping the cached pages in off-heap slabs */
+    static final String STORAGE_OFF_HEAP = "offheap";
+
+    /** OSGi property name for the size of an off-heap slab */
+    static final String SLAB_BYTES = "cache.slabBytes";
+
+    /** Default size of an off-heap slab */
+    static final int DEFAULT_SLAB_BYTES = 1024 * 1024;
+
+    /** OSGi property name for the time to wait for a concurrent render */
+    static final String COALESCE_TIMEOUT = "cache.coalesceTimeout";
+
+    /** Default time to wait for a concurrent render */
+    static final long DEFAULT_COALESCE_TIMEOUT = 5000;
+
+    /** OSGi property name for stale-while-revalidate */
+    static final String STALE_WHILE_REVALIDATE = "cache.staleWhileRevalidate";
+
+    /** Default value for stale-while-revalidate */
+    static final boolean DEFAULT_STALE_WHILE_REVALIDATE = false;
+
+    /** OSGi property name for how long an invalidated page may be served */
+    static final String MAX_STALENESS = "cache.maxStaleness";
+
+    /** Default time an invalidated page may be served */
+    static final long DEFAULT_MAX_STALENESS = 60 * 1000;
+
+    /** OSGi property name for the number of revalidation threads */
+    static final String REVALIDATION_THREADS = "cache.revalidationThreads";
+
+    /** Default number of revalidation threads */
+    static final int DEFAULT_REVALIDATION_THREADS = 2;
+
+    /** The number of revalidations that may wait for a thread. */
+    private static final int REVALIDATION_QUEUE_SIZE = 100;
+
+    /** Request attribute holding when the page of a revalidation request became stale. */
+    private static final String REVALIDATION_ATTRIBUTE = PageCacheFilter.class.getName() + ".staleSince";
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageCacheFilter.class);
+
+    /** The user ID of readers that are not logged in. */
+    private static final String ANONYMOUS_USER = "anonymous";
+
+    /** The querystring parameters that change the rendered page. */
+    private static final String[] KEY_PARAMETERS = {"page", "after", "limit", "order", "replies"};
+
+    /** The selector of the comments of a blog post. */
+    private static final String COMMENTS_SELECTOR = "comments";
+
+    /** Separates the parts of the cache key. */
+    private static final char KEY_SEPARATOR = '|';
+
+    /** Response header telling whether the page came from the cache. */
+    private static final String CACHE_HEADER = "X-RPGM-Cache";
+
+    /** Service providing the comments mode. */
+    @Reference
+    private CommentService commentService;
+
+    /** Factory for the anonymous resource resolver of revalidation requests. */
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    /** Processor rendering revalidation requests. */
+    @Reference
+    private SlingRequestProcessor slingRequestProcessor;
+
+    /** Whether the page cache is enabled. */
+    private boolean enabled = DEFAULT_ENABLED;
+
+    /** The cached pages keyed by path, selectors, extension and parameters. */
+    private volatile PageStore cache;
+
+    /** How long in milliseconds a request waits for a concurrent render, 0 to not wait. */
+    private long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+
+    /** The renders in progress keyed by cache key. */
+    private final ConcurrentHashMap<String, Render> renders = new ConcurrentHashMap<>();
+
+    /** Whether invalidated pages are served while they are rendered again. */
+    private boolean staleWhileRevalidate = DEFAULT_STALE_WHILE_REVALIDATE;
+
+    /** How long in milliseconds an invalidated page may be served. */
+    private long maxStaleness = DEFAULT_MAX_STALENESS;
+
+    /** When cached pages were invalidated keyed by cache key. */
+    private final ConcurrentHashMap<String, Long> staleSince = new ConcurrentHashMap<>();
+
+    /** The keys of the pages being revalidated. */
+    private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The pool rendering invalidated pages, null unless stale-while-revalidate is enabled. */
+    private ThreadPoolExecutor revalidationPool;
+
+    /** Incremented on every blog post or comment change, so pages rendered during a change aren't cached. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** The number of pages invalidated by repository changes. */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /** The number of requests served by a concurrent render. */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /** The number of requests that rendered on their own after waiting for a concurrent render. */
+    private final AtomicLong coalesceFallbacks = new AtomicLong();
+
+    /** The number of requests served an invalidated page. */
+    private final AtomicLong staleServes = new AtomicLong();
+
+    /** The number of invalidated pages rendered again in the background. */
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /** The number of revalidations dropped because the pool was busy or the render failed. */
+    private final AtomicLong revalidationFailures = new AtomicLong();
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        enabled = PropertiesUtil.toBoolean(properties.get(ENABLED), DEFAULT_ENABLED);
+        long maxBytes = PropertiesUtil.toLong(properties.get(MAX_BYTES), DEFAULT_MAX_BYTES);
+        String storage = PropertiesUtil.toString(properties.get(STORAGE), STORAGE_HEAP);
+        coalesceTimeout = PropertiesUtil.toLong(properties.get(COALESCE_TIMEOUT), DEFAULT_COALESCE_TIMEOUT);
+        staleWhileRevalidate = PropertiesUtil.toBoolean(properties.get(STALE_WHILE_REVALIDATE),
+            DEFAULT_STALE_WHILE_REVALIDATE);
+        maxStaleness = PropertiesUtil.toLong(properties.get(MAX_STALENESS), DEFAULT_MAX_STALENESS);
+        staleSince.clear();
+        revalidating.clear();
+
+        if (staleWhileRevalidate) {
+            int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(REVALIDATION_THREADS),
+                DEFAULT_REVALIDATION_THREADS));
+
+            revalidationPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REVALIDATION_QUEUE_SIZE), new RevalidationThreadFactory());
+            revalidationPool.allowCoreThreadTimeOut(true);
+        }
+
+        if (STORAGE_OFF_HEAP.equals(storage)) {
+            cache = new OffHeapPageStore(maxBytes,
+                PropertiesUtil.toInteger(properties.get(SLAB_BYTES), DEFAULT_SLAB_BYTES));
+        } else {
+            cache = new HeapPageStore(maxBytes);
+        }
+        LOGGER.info("Page cache {} and limited to {} bytes on {}", new Object[] {
+            enabled ? "enabled" : "disabled", maxBytes, storage});
+    }
+
+    /**
+     * Service deactivation.
+     */
+    @Deactivate
+    protected void deactivate() {
+        if (revalidationPool != null) {
+            revalidationPool.shutdownNow();
+            revalidationPool = null;
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    /**
+     * Write the cached page for anonymous GET requests to blog pages, or
+     * render the page and cache the result. Only one of the concurrent
+     * requests for an uncached page renders it, the others wait for it.
+     */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        if (!enabled || !(request instanceof SlingHttpServletRequest) || !isCacheable((SlingHttpServletRequest)request)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest)request;
+        SlingHttpServletResponse slingResponse = (SlingHttpServletResponse)response;
+        String key = getKey(slingRequest);
+        Long revalidation = (Long)slingRequest.getAttribute(REVALIDATION_ATTRIBUTE);
+
+        if (revalidation != null) {
+            revalidate(slingRequest, slingResponse, chain, key, revalidation);
+            return;
+        }
+
+        CachedPage page = cache.get(key);
+        Long stale = staleSince.get(key);
+
+        if (stale != null) {
+            if (page != null && System.currentTimeMillis() - stale <= maxStaleness) {
+                staleServes.incrementAndGet();
+                scheduleRevalidation(slingRequest, key, stale);
+                slingResponse.setHeader(CACHE_HEADER, "STALE");
+                writePage(slingResponse, page);
+                return;
+            }
+
+            cache.remove(key);
+            staleSince.remove(key, stale);
+            page = null;
+        }
+
+        if (page != null) {
+            slingResponse.setHeader(CACHE_HEADER, "HIT");
+            writePage(slingResponse, page);
+            return;
+        }
+
+        Render render = null;
+
+        if (coalesceTimeout > 0) {
+            Render started = new Render();
+            render = renders.putIfAbsent(key, started);
+
+            if (render != null) {
+                page = render.await(coalesceTimeout);
+
+                if (page != null) {
+                    coalesced.incrementAndGet();
+                    slingResponse.setHeader(CACHE_HEADER, "COALESCED");
+                    writePage(slingResponse, page);
+                    return;
+                }
+
+                coalesceFallbacks.incrementAndGet();
+                render = null;
+            } else {
+                render = started;
+            }
+        }
+
+        try {
+            long renderGeneration = generation.get();
+            slingResponse.setHeader(CACHE_HEADER, "MISS");
+            page = renderPage(slingRequest, slingResponse, chain);
+
+            if (page != null && generation.get() == renderGeneration) {
+                cache.put(key, page);
+            }
+        } finally {
+            if (render != null) {
+                renders.remove(key, render);
+                render.complete(page);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Invalidate the cached pages affected by a committed change. A change
+     * to a blog post invalidates the post and the blog list pages, a change
+     * to a comment invalidates the post it belongs to, or only the post's
+     * comments if comments are deferred. In stale-while-
+     * revalidate mode pages are marked stale rather than removed, except
+     * for the pages of removed resources.
+     *
+     * @param event The resource event.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String)event.getProperty(SlingConstants.PROPERTY_PATH);
+
+        if (path == null) {
+            return;
+        }
+
+        boolean comment = path.startsWith(RPGMConstants.COMMENTS_PATH + "/");
+        boolean removed = SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic());
+        Long now = System.currentTimeMillis();
+        String blogPath = comment ? RPGMConstants.BLOG_PATH + path.substring(RPGMConstants.COMMENTS_PATH.length()) : path;
+        boolean commentsOnly = comment && commentService.isDeferred();
+
+        generation.incrementAndGet();
+
+        for (String key : cache.keys()) {
+            String keyPath = key.substring(0, key.indexOf(KEY_SEPARATOR));
+            boolean affected = keyPath.equals(blogPath) || blogPath.startsWith(keyPath + "/");
+
+            if (comment) {
+                affected &= !keyPath.equals(RPGMConstants.BLOG_PATH);
+                affected &= !commentsOnly || isComments(key);
+            } else {
+                affected |= keyPath.startsWith(blogPath + "/");
+            }
+
+            if (!affected) {
+                continue;
+            }
+
+            boolean own = keyPath.equals(blogPath) || keyPath.startsWith(blogPath + "/");
+
+            if (staleWhileRevalidate && !(removed && !comment && own)) {
+                if (staleSince.putIfAbsent(key, now) == null) {
+                    invalidations.incrementAndGet();
+                }
+            } else if (cache.remove(key)) {
+                staleSince.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public String getCacheName() {
+        return "pages";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = cache.getStats();
+        stats.put("invalidations", invalidations.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("coalesceFallbacks", coalesceFallbacks.get());
+        stats.put("staleServes", staleServes.get());
+        stats.put("revalidations", revalidations.get());
+        stats.put("revalidationFailures", revalidationFailures.get());
+
+        return stats;
+    }
+
+    /**
+     * Whether the request is an anonymous GET request for a blog page.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return true if the rendered page can be cached.
+     */
+    private boolean isCacheable(SlingHttpServletRequest request) {
+        String path = request.getResource().getPath();
+
+        if (!"GET".equals(request.getMethod())
+                || !(path.equals(RPGMConstants.BLOG_PATH) || path.startsWith(RPGMConstants.BLOG_PATH + "/"))) {
+            return false;
+        }
+
+        return ANONYMOUS_USER.equals(request.getResourceResolver().getUserID());
+    }
+
+    /**
+     * Whether a cache key is of the comments of a blog post rather than the
+     * blog post itself.
+     *
+     * @param key The cache key.
+     * @return true if the key's first selector is the comments selector.
+     */
+    private static boolean isComments(String key) {
+        int start = key.indexOf(KEY_SEPARATOR) + 1;
+        String selectors = key.substring(start, key.indexOf(KEY_SEPARATOR, start));
+
+        return selectors.equals(COMMENTS_SELECTOR) || selectors.startsWith(COMMENTS_SELECTOR + ".");
+    }
+
+    /**
+     * Get the cache key of the requested page.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return The cache key starting with the resource path.
+     */
+    private String getKey(SlingHttpServletRequest request) {
+        StringBuilder key = new StringBuilder(request.getResource().getPath())
+            .append(KEY_SEPARATOR).append(StringUtils.defaultString(request.getRequestPathInfo().getSelectorString()))
+            .append(KEY_SEPARATOR).append(StringUtils.defaultString(request.getRequestPathInfo().getExtension()))
+            .append(KEY_SEPARATOR).append(StringUtils.defaultString(request.getRequestPathInfo().getSuffix()));
+
+        for (String parameter : KEY_PARAMETERS) {
+            key.append(KEY_SEPARATOR).append(StringUtils.defaultString(request.getParameter(parameter)));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Render a stale page again for a revalidation request and replace the
+     * cached page, unless it was invalidated again or anything changed in
+     * the meantime. The page then stays stale to be revalidated again.
+     *
+     * @param request The revalidation request.
+     * @param response The revalidation response.
+     * @param chain The filter chain rendering the page.
+     * @param key The cache key.
+     * @param stale When the page became stale.
+     */
+    private void revalidate(SlingHttpServletRequest request, SlingHttpServletResponse response,
+            FilterChain chain, String key, Long stale) throws IOException, ServletException {
+
+        long renderGeneration = generation.get();
+        CachedPage page = renderPage(request, response, chain);
+
+        if (page != null && stale.equals(staleSince.get(key)) && generation.get() == renderGeneration) {
+            cache.put(key, page);
+            staleSince.remove(key, stale);
+            revalidations.incrementAndGet();
+        } else if (page == null) {
+            revalidationFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queue the background render of a stale page unless it's already queued.
+     *
+     * @param request The request served the stale page.
+     * @param key The cache key.
+     * @param stale When the page became stale.
+     */
+    private void scheduleRevalidation(SlingHttpServletRequest request, final String key, final Long stale) {
+        ThreadPoolExecutor pool = revalidationPool;
+
+        if (pool == null || !revalidating.add(key)) {
+            return;
+        }
+
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (String parameter : KEY_PARAMETERS) {
+            String value = request.getParameter(parameter);
+            if (value != null) {
+                parameters.put(parameter, new String[] {value});
+            }
+        }
+
+        final InternalRequest revalidation = new InternalRequest(request.getScheme(), request.getServerName(),
+            request.getServerPort(), request.getRequestURI(), parameters);
+        revalidation.setAttribute(REVALIDATION_ATTRIBUTE, stale);
+
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ResourceResolver resolver = null;
+                    try {
+                        resolver = resourceResolverFactory.getResourceResolver(null);
+                        slingRequestProcessor.processRequest(revalidation, new InternalResponse(), resolver);
+                    } catch (LoginException | ServletException | IOException | RuntimeException e) {
+                        revalidationFailures.incrementAndGet();
+                        LOGGER.warn("Could not revalidate cached page " + key, e);
+                    } finally {
+                        revalidating.remove(key);
+                        if (resolver != null && resolver.isLive()) {
+                            resolver.close();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidating.remove(key);
+            revalidationFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Render the requested page, capturing the result.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     * @param chain The filter chain rendering the page.
+     * @return The rendered page or null if it can't be cached.
+     */
+    private CachedPage renderPage(SlingHttpServletRequest request, SlingHttpServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+
+        CaptureResponseWrapper wrapper = new CaptureResponseWrapper(response);
+        chain.doFilter(request, wrapper);
+
+        if (!wrapper.isCapturable()) {
+            return null;
+        }
+
+        String encoding = StringUtils.defaultIfEmpty(wrapper.getCharacterEncoding(), CharEncoding.UTF_8);
+        byte[] body = wrapper.getCapturedContent().getBytes(encoding);
+
+        return new CachedPage(wrapper.getContentType(), encoding, body, System.currentTimeMillis());
+    }
+
+    /**
+     * Write a cached page to the response.
+     *
+     * @param response The Sling HTTP servlet response.
+     * @param page The cached page.
+     */
+    private void writePage(SlingHttpServletResponse response, CachedPage page) throws IOException {
+        if (page.getContentType() != null) {
+            response.setContentType(page.getContentType());
+        }
+        response.setCharacterEncoding(page.getCharacterEncoding());
+        response.setContentLength(page.getBody().length);
+        response.getOutputStream().write(page.getBody());
+    }
+
+    /**
+     * Creates the daemon threads of the revalidation pool.
+     */
+    private static final class RevalidationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "rpgm-page-revalidation-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
+
+    /**
+     * A render in progress that concurrent requests for the same page wait for.
+     */
+    private static final class Render {
+
+        /** Released once the render completed. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** The rendered page or null if it can't be shared. */
+        private volatile CachedPage page;
+
+        void complete(CachedPage page) {
+            this.page = page;
+            done.countDown();
+        }
+
+        /**
+         * Wait for the render to complete.
+         *
+         * @param timeout The time to wait in milliseconds.
+         * @return The rendered page or null if it can't be shared or didn't complete in time.
+         */
+        CachedPage await(long timeout) {
+            try {
+                return done.await(timeout, TimeUnit.MILLISECONDS) ? page : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
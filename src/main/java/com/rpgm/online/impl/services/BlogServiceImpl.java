@@ -1,20 +1,42 @@
 package com.rpgm.online.impl.services;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.TimeZone;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.util.ISO8601;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rpgm.online.RPGMConstants;
 import com.rpgm.online.services.BlogService;
+import com.rpgm.online.services.PostPage;
+import com.rpgm.online.services.PostSummary;
+import com.rpgm.online.services.PublishedPostIndex;
 
 @Service
 @Component
@@ -26,17 +48,37 @@ public class BlogServiceImpl implements BlogService {
     private static final Logger LOGGER = LoggerFactory.getLogger(BlogServiceImpl.class);
 
     /**
-     * JCR_SQL2 query to get all blog posts in order of newest first.
+     * JCR_SQL2 query to get all published blog posts in order of newest
+     * first, breaking ties by path like {@link #NEWEST_FIRST}.
      */
     private static final String PUBLISHED_BLOGS_QUERY = String.format("SELECT * FROM [%s] AS s WHERE "
-            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s' AND s.[%s] = '%s' ORDER BY [%s] desc",
+            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s' AND s.[%s] = '%s' ORDER BY [%s] desc, [%s] desc",
         JcrConstants.NT_UNSTRUCTURED,
         RPGMConstants.BLOG_PATH,
         JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
         RPGMConstants.PAGE_TYPE_BLOG,
         RPGMConstants.PROP_BLOG_VISIBLE,
         "true",
-        JcrConstants.JCR_CREATED);
+        JcrConstants.JCR_CREATED,
+        JcrConstants.JCR_PATH);
+
+    /**
+     * JCR_SQL2 query to get published blog posts created at or before a date
+     * in order of newest first, breaking ties by path like {@link #NEWEST_FIRST}.
+     * The date is formatted into the query.
+     */
+    private static final String PUBLISHED_BLOGS_BEFORE_QUERY = String.format("SELECT * FROM [%s] AS s WHERE "
+            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s' AND s.[%s] = '%s' AND s.[%s] <= CAST('%%s' AS DATE) "
+            + "ORDER BY [%s] desc, [%s] desc",
+        JcrConstants.NT_UNSTRUCTURED,
+        RPGMConstants.BLOG_PATH,
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        RPGMConstants.PAGE_TYPE_BLOG,
+        RPGMConstants.PROP_BLOG_VISIBLE,
+        "true",
+        JcrConstants.JCR_CREATED,
+        JcrConstants.JCR_CREATED,
+        JcrConstants.JCR_PATH);
 
     /**
      * JCR_SQL2 query to get all blog posts in order of newest first.
@@ -49,6 +91,112 @@ public class BlogServiceImpl implements BlogService {
         RPGMConstants.PAGE_TYPE_BLOG,
         JcrConstants.JCR_CREATED);
 
+    /**
+     * Prefix to get the query plan of a JCR_SQL2 query instead of its results.
+     */
+    private static final String EXPLAIN_PREFIX = "explain ";
+
+    /**
+     * The result column holding the query plan.
+     */
+    private static final String PLAN_COLUMN = "plan";
+
+    /**
+     * Marker in a query plan for a query that traverses nodes.
+     */
+    private static final String TRAVERSAL_PLAN = "traverse";
+
+    /**
+     * Prefix of the request attributes holding computed pages.
+     */
+    private static final String PAGE_ATTRIBUTE_PREFIX = PostPage.class.getName() + ":";
+
+    /**
+     * Separates the created date from the path in a cursor.
+     */
+    private static final char CURSOR_SEPARATOR = '~';
+
+    /**
+     * Orders blog posts newest first, breaking ties on the created date
+     * by path so that every post has a stable position for cursors. The
+     * published post queries and index order the same way.
+     */
+    private static final Comparator<Resource> NEWEST_FIRST = new Comparator<Resource>() {
+        @Override
+        public int compare(Resource a, Resource b) {
+            long createdA = getCreated(a);
+            long createdB = getCreated(b);
+
+            if (createdA != createdB) {
+                return createdA > createdB ? -1 : 1;
+            }
+
+            return b.getPath().compareTo(a.getPath());
+        }
+    };
+
+    /**
+     * In-memory index answering published post requests without a query.
+     */
+    @Reference
+    private PublishedPostIndex publishedPostIndex = null;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    /**
+     * Check the query plans of the blog listing queries on activation and
+     * warn if the repository has to traverse nodes to answer them.
+     */
+    @Activate
+    protected void activate() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            Session session = resolver.adaptTo(Session.class);
+
+            if (session != null) {
+                QueryManager queryManager = session.getWorkspace().getQueryManager();
+                checkQueryPlan(queryManager, PUBLISHED_BLOGS_QUERY);
+                checkQueryPlan(queryManager, ALL_BLOGS_QUERY);
+            }
+        } catch (LoginException e) {
+            LOGGER.error("Could not check blog query plans", e);
+        } catch (RepositoryException e) {
+            LOGGER.error("Could not check blog query plans", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Log the plan of a query and warn if it traverses the repository
+     * instead of using an index.
+     *
+     * @param queryManager The JCR query manager.
+     * @param statement The JCR_SQL2 query statement.
+     */
+    private void checkQueryPlan(QueryManager queryManager, String statement) {
+        try {
+            RowIterator rows = queryManager.createQuery(EXPLAIN_PREFIX + statement, Query.JCR_SQL2).execute().getRows();
+
+            if (rows.hasNext()) {
+                String plan = rows.nextRow().getValue(PLAN_COLUMN).getString();
+
+                if (StringUtils.containsIgnoreCase(plan, TRAVERSAL_PLAN)) {
+                    LOGGER.warn("Blog query traverses the repository, check the index definitions under /oak:index."
+                        + " Query: {} Plan: {}", statement, plan);
+                } else {
+                    LOGGER.info("Blog query plan: {}", plan);
+                }
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Could not explain blog query " + statement, e);
+        }
+    }
+
     @Override
     public Iterator<Resource> getPosts(SlingHttpServletRequest request) {
         return request.getResourceResolver().findResources(ALL_BLOGS_QUERY, "JCR-SQL2");
@@ -59,7 +207,23 @@ public class BlogServiceImpl implements BlogService {
     }
 
 
+    /**
+     * Get the requested window of published posts from the published post
+     * index. While the index isn't ready, the window is queried from the
+     * repository with the offset and limit pushed down into the JCR query.
+     * If the resolver isn't backed by a JCR session, the posts are skipped
+     * and counted here.
+     */
     public List<Resource> getPublishedPosts(SlingHttpServletRequest request, long offset, long limit) {
+        if (publishedPostIndex.isReady()) {
+            return resolve(request.getResourceResolver(), publishedPostIndex.getPosts(offset, limit));
+        }
+
+        List<Resource> window = queryPublishedPosts(request.getResourceResolver(), offset, limit);
+        if (window != null) {
+            return window;
+        }
+
         ArrayList<Resource> posts = new ArrayList<>();
         Iterator<Resource> blogPosts = request.getResourceResolver().findResources(PUBLISHED_BLOGS_QUERY, "JCR-SQL2");
         long count = 0;
@@ -78,6 +242,120 @@ public class BlogServiceImpl implements BlogService {
         return posts;
     }
 
+    /**
+     * Seek past the cursor in the published post index. While the index
+     * isn't ready, the query is restricted to posts created at or before
+     * the cursor's date. Only posts sharing the cursor's date are skipped,
+     * so the cost depends on the page size rather than the page number.
+     * Reading continues past the limit while posts share the date of the
+     * last post so that ties can be ordered by path.
+     */
+    @Override
+    public List<Resource> getPublishedPostsAfter(SlingHttpServletRequest request, String cursor, long limit) {
+        long cursorCreated = Long.MIN_VALUE;
+        String cursorPath = null;
+
+        int separator = StringUtils.indexOf(cursor, CURSOR_SEPARATOR);
+
+        if (separator > 0) {
+            try {
+                cursorCreated = Long.parseLong(cursor.substring(0, separator), Character.MAX_RADIX);
+            } catch (NumberFormatException e) {
+                LOGGER.error("Could not parse cursor {}", cursor);
+                return new ArrayList<>();
+            }
+            cursorPath = cursor.substring(separator + 1);
+        }
+
+        if (publishedPostIndex.isReady()) {
+            List<PostSummary> summaries = cursorPath != null
+                ? publishedPostIndex.getPostsAfter(cursorCreated, cursorPath, limit)
+                : publishedPostIndex.getPosts(0, limit);
+
+            return resolve(request.getResourceResolver(), summaries);
+        }
+
+        Iterator<Resource> blogPosts;
+
+        if (cursorPath != null) {
+            Calendar date = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            date.setTimeInMillis(cursorCreated);
+            blogPosts = request.getResourceResolver().findResources(
+                String.format(PUBLISHED_BLOGS_BEFORE_QUERY, ISO8601.format(date)), "JCR-SQL2");
+        } else {
+            blogPosts = request.getResourceResolver().findResources(PUBLISHED_BLOGS_QUERY, "JCR-SQL2");
+        }
+
+        List<Resource> posts = new ArrayList<>();
+        long lastCreated = Long.MIN_VALUE;
+
+        while (blogPosts.hasNext()) {
+            Resource post = blogPosts.next();
+            long created = getCreated(post);
+
+            if (created == cursorCreated && post.getPath().compareTo(cursorPath) >= 0) {
+                // already displayed before the cursor
+                continue;
+            }
+            if (limit != 0 && posts.size() >= limit && created != lastCreated) {
+                break;
+            }
+
+            posts.add(post);
+            lastCreated = created;
+        }
+
+        Collections.sort(posts, NEWEST_FIRST);
+
+        if (limit != 0 && posts.size() > limit) {
+            return new ArrayList<>(posts.subList(0, (int)limit));
+        }
+
+        return posts;
+    }
+
+    /**
+     * The page is stored as a request attribute keyed by its page number,
+     * cursor and size, so the list and the pagination of one list render
+     * share a single pass over the published posts. While the index isn't
+     * ready, the page and the number of posts come from one query.
+     */
+    @Override
+    public PostPage getPublishedPage(SlingHttpServletRequest request, long page, String cursor, long pageSize) {
+        final long pageNumber = Math.max(page, 1);
+        final String attribute = PAGE_ATTRIBUTE_PREFIX + pageNumber + CURSOR_SEPARATOR + pageSize
+            + CURSOR_SEPARATOR + StringUtils.defaultString(cursor);
+
+        Object cached = request.getAttribute(attribute);
+        if (cached instanceof PostPage) {
+            return (PostPage)cached;
+        }
+
+        PostPage postPage = publishedPostIndex.isReady()
+            ? null : queryPublishedPage(request.getResourceResolver(), pageNumber, cursor, pageSize);
+
+        if (postPage == null) {
+            List<Resource> items;
+            if (StringUtils.isNotEmpty(cursor)) {
+                items = getPublishedPostsAfter(request, cursor, pageSize);
+            } else {
+                items = getPublishedPosts(request, (pageNumber - 1) * pageSize, pageSize);
+            }
+
+            String nextCursor = items.isEmpty() ? null : getCursor(items.get(items.size() - 1));
+            postPage = new PostPage(items, getNumberOfPosts(request), pageNumber, pageSize, nextCursor);
+        }
+
+        request.setAttribute(attribute, postPage);
+
+        return postPage;
+    }
+
+    @Override
+    public String getCursor(Resource post) {
+        return Long.toString(getCreated(post), Character.MAX_RADIX) + CURSOR_SEPARATOR + post.getPath();
+    }
+
     public long getNumberOfPages(SlingHttpServletRequest request, int pageSize) {
         long posts = getNumberOfPosts(request);
 
@@ -85,10 +363,218 @@ public class BlogServiceImpl implements BlogService {
     }
 
 
+    /**
+     * Get the number of published blog posts from the published post
+     * index, or count them without building the list of posts while the
+     * index isn't ready.
+     */
     public long getNumberOfPosts(SlingHttpServletRequest request) {
-        return getPublishedPosts(request).size();
+        if (publishedPostIndex.isReady()) {
+            return publishedPostIndex.size();
+        }
+
+        return countPublishedPosts(request.getResourceResolver());
+    }
+
+    /**
+     * Count the published blog posts by walking the query result without
+     * resolving the posts to resources.
+     *
+     * @param resolver The resource resolver of the user requesting the count.
+     * @return The number of published blog posts.
+     */
+    private long countPublishedPosts(ResourceResolver resolver) {
+        Session session = resolver.adaptTo(Session.class);
+
+        if (session != null) {
+            try {
+                QueryManager queryManager = session.getWorkspace().getQueryManager();
+                NodeIterator nodes = queryManager.createQuery(PUBLISHED_BLOGS_QUERY, Query.JCR_SQL2).execute().getNodes();
+                long size = nodes.getSize();
+
+                if (size < 0) {
+                    size = 0;
+                    while (nodes.hasNext()) {
+                        nodes.nextNode();
+                        size++;
+                    }
+                }
+
+                return size;
+            } catch (RepositoryException e) {
+                LOGGER.error("Could not count published blog posts", e);
+            }
+        }
+
+        long size = 0;
+        Iterator<Resource> blogPosts = resolver.findResources(PUBLISHED_BLOGS_QUERY, "JCR-SQL2");
+        while (blogPosts.hasNext()) {
+            blogPosts.next();
+            size++;
+        }
+
+        return size;
     }
 
+    /**
+     * Run the published blog posts query through the JCR query manager so
+     * that the repository only returns the requested window of posts.
+     *
+     * @param resolver The resource resolver of the user requesting the posts.
+     * @param offset The number of blog posts to skip.
+     * @param limit The number of blog posts to get, 0 for all.
+     * @return The published blog posts or null if the query could not be run
+     *            through the JCR query manager.
+     */
+    private List<Resource> queryPublishedPosts(ResourceResolver resolver, long offset, long limit) {
+        Session session = resolver.adaptTo(Session.class);
+
+        if (session == null) {
+            return null;
+        }
+
+        try {
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            Query query = queryManager.createQuery(PUBLISHED_BLOGS_QUERY, Query.JCR_SQL2);
+
+            if (offset > 0) {
+                query.setOffset(offset);
+            }
+            if (limit > 0) {
+                query.setLimit(limit);
+            }
 
+            List<Resource> posts = new ArrayList<>();
+            NodeIterator nodes = query.execute().getNodes();
 
+            while (nodes.hasNext()) {
+                Resource post = resolver.getResource(nodes.nextNode().getPath());
+                if (post != null) {
+                    posts.add(post);
+                }
+            }
+
+            return posts;
+        } catch (RepositoryException e) {
+            LOGGER.error("Could not query published blog posts", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Query a page of published blog posts together with the number of
+     * published blog posts in one pass over the published blog posts query.
+     * Posts are skipped by position for a page number or by created date
+     * and path for a cursor, and counted without being resolved once the
+     * page is full unless the query result knows its size.
+     *
+     * @param resolver The resource resolver of the user requesting the page.
+     * @param pageNumber The page number, used without a cursor.
+     * @param cursor The cursor of the last post already displayed, or null.
+     * @param pageSize The number of blog posts per page, 0 for all.
+     * @return The page or null if the query could not be run through the JCR
+     *            query manager or the cursor is invalid.
+     */
+    private PostPage queryPublishedPage(ResourceResolver resolver, long pageNumber, String cursor, long pageSize) {
+        Session session = resolver.adaptTo(Session.class);
+        int separator = StringUtils.indexOf(cursor, CURSOR_SEPARATOR);
+        long cursorCreated = Long.MIN_VALUE;
+        String cursorPath = null;
+
+        if (session == null || (StringUtils.isNotEmpty(cursor) && separator <= 0)) {
+            return null;
+        }
+
+        try {
+            if (separator > 0) {
+                cursorCreated = Long.parseLong(cursor.substring(0, separator), Character.MAX_RADIX);
+                cursorPath = cursor.substring(separator + 1);
+            }
+
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            NodeIterator nodes = queryManager.createQuery(PUBLISHED_BLOGS_QUERY, Query.JCR_SQL2).execute().getNodes();
+            long size = nodes.getSize();
+            long skip = cursorPath == null ? (pageNumber - 1) * pageSize : 0;
+            long position = 0;
+            List<Resource> items = new ArrayList<>();
+
+            while (nodes.hasNext()) {
+                boolean full = pageSize > 0 && items.size() >= pageSize;
+
+                if (full && size >= 0) {
+                    break;
+                }
+
+                Node node = nodes.nextNode();
+                position++;
+
+                if (full || position <= skip || (cursorPath != null && !isAfter(node, cursorCreated, cursorPath))) {
+                    continue;
+                }
+
+                Resource post = resolver.getResource(node.getPath());
+                if (post != null) {
+                    items.add(post);
+                }
+            }
+
+            String nextCursor = items.isEmpty() ? null : getCursor(items.get(items.size() - 1));
+
+            return new PostPage(items, size >= 0 ? size : position, pageNumber, pageSize, nextCursor);
+        } catch (NumberFormatException e) {
+            LOGGER.error("Could not parse cursor {}", cursor);
+        } catch (RepositoryException e) {
+            LOGGER.error("Could not query published blog posts", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether a blog post node follows the cursor in newest first order.
+     *
+     * @param node The blog post node.
+     * @param cursorCreated The created date of the cursor in milliseconds.
+     * @param cursorPath The path of the cursor.
+     * @return true if the blog post wasn't displayed before the cursor.
+     */
+    private static boolean isAfter(Node node, long cursorCreated, String cursorPath) throws RepositoryException {
+        long created = node.hasProperty(JcrConstants.JCR_CREATED)
+            ? node.getProperty(JcrConstants.JCR_CREATED).getDate().getTimeInMillis() : 0;
+
+        return created < cursorCreated || (created == cursorCreated && node.getPath().compareTo(cursorPath) < 0);
+    }
+
+    /**
+     * Resolve indexed blog posts with the resolver of the user requesting them.
+     *
+     * @param resolver The resource resolver of the user requesting the posts.
+     * @param summaries The indexed blog posts.
+     * @return The blog post resources the user can read.
+     */
+    private List<Resource> resolve(ResourceResolver resolver, List<PostSummary> summaries) {
+        List<Resource> posts = new ArrayList<>(summaries.size());
+
+        for (PostSummary summary : summaries) {
+            Resource post = resolver.getResource(summary.getPath());
+            if (post != null) {
+                posts.add(post);
+            }
+        }
+
+        return posts;
+    }
+
+    /**
+     * Get the creation date of a blog post.
+     *
+     * @param post The blog post.
+     * @return The jcr:created date in milliseconds or 0 if not set.
+     */
+    private static long getCreated(Resource post) {
+        Calendar created = post.adaptTo(ValueMap.class).get(JcrConstants.JCR_CREATED, Calendar.class);
+
+        return created != null ? created.getTimeInMillis() : 0;
+    }
 }
\ No newline at end of file
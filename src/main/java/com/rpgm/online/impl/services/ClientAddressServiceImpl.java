@@ -0,0 +1,102 @@
+package com.rpgm.online.impl.services;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyUnbounded;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+
+import com.rpgm.online.services.ClientAddressService;
+
+/**
+ * Client address service that only trusts the X-FORWARDED-FOR header when
+ * the request came from a configured proxy. The header is read from right
+ * to left, as every proxy appends the address it received the request
+ * from, and the first address that isn't a trusted proxy is the client.
+ * The addresses left of it are sent by the client and can't be trusted.
+ * Without trusted proxies the remote address of the request is the client.
+ */
+@Service(value = ClientAddressService.class)
+@Component(metatype = true,
+           name = "RPGM client address",
+           description = "Gets the address of the client a request came from.")
+@Properties({
+    @Property(name = ClientAddressServiceImpl.TRUSTED_PROXIES,
+              unbounded = PropertyUnbounded.ARRAY,
+              label = "Trusted proxies",
+              description = "The IP addresses of the proxies and load balancers in front of the server, "
+                  + "whose X-FORWARDED-FOR header holds the client address.")
+})
+public class ClientAddressServiceImpl implements ClientAddressService {
+
+    /** OSGi property name for the trusted proxies */
+    static final String TRUSTED_PROXIES = "client.trustedProxies";
+
+    /** The header holding the client address and the proxies it came through. */
+    private static final String FORWARDED_FOR_HEADER = "X-FORWARDED-FOR";
+
+    /** The addresses of the trusted proxies. */
+    private volatile Set<String> trustedProxies = Collections.emptySet();
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        Set<String> configured = new HashSet<>();
+
+        for (String proxy : PropertiesUtil.toStringArray(properties.get(TRUSTED_PROXIES), new String[0])) {
+            if (StringUtils.isNotBlank(proxy)) {
+                configured.add(proxy.trim());
+            }
+        }
+
+        trustedProxies = configured;
+    }
+
+    /**
+     * Get the client's IP address, the remote address of the request unless
+     * it is a trusted proxy, otherwise the last address of the
+     * X-FORWARDED-FOR headers that isn't a trusted proxy.
+     *
+     * @param request The HTTP servlet request.
+     * @return The client's IP address.
+     */
+    @Override
+    public String getClientAddress(final HttpServletRequest request) {
+        Set<String> trusted = trustedProxies;
+        String address = request.getRemoteAddr();
+
+        if (!trusted.contains(address)) {
+            return address;
+        }
+
+        String[] hops = StringUtils.split(StringUtils.join(
+            Collections.list(request.getHeaders(FORWARDED_FOR_HEADER)), ','), ',');
+
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+
+            if (!hop.isEmpty()) {
+                address = hop;
+
+                if (!trusted.contains(hop)) {
+                    break;
+                }
+            }
+        }
+
+        return address;
+    }
+}
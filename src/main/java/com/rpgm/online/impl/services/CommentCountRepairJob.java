@@ -0,0 +1,136 @@
+package com.rpgm.online.impl.services;
+
+import java.util.Iterator;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.CommentService;
+
+/**
+ * Scheduled job recounting the comments of every blog post and repairing
+ * the comment count kept on the blog post's comments node where it's
+ * missing or wrong. Each blog post is committed on its own, so a comment
+ * posted meanwhile only conflicts with the repair of its own blog post,
+ * which is then recounted.
+ */
+@Service(value = Runnable.class)
+@Component(metatype = true,
+           name = "RPGM comment count repair",
+           description = "Recounts the comments of every blog post and repairs the stored comment counts.")
+@Properties({
+    @Property(name = "scheduler.expression",
+              value = "0 0 3 * * ?",
+              label = "Schedule",
+              description = "Quartz cron expression of when to repair the comment counts."),
+    @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true)
+})
+public class CommentCountRepairJob implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentCountRepairJob.class);
+
+    /** JCR_SQL2 query to get all blog posts. */
+    private static final String ALL_BLOGS_QUERY = String.format("SELECT * FROM [%s] AS s WHERE "
+            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s'",
+        JcrConstants.NT_UNSTRUCTURED,
+        RPGMConstants.BLOG_PATH,
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        RPGMConstants.PAGE_TYPE_BLOG);
+
+    /**
+     * How often repairing the comment count of a blog post is attempted
+     * when a concurrent change to its comments conflicts with it.
+     */
+    private static final int MAX_REPAIR_ATTEMPTS = 3;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    @Reference
+    private CommentService commentService = null;
+
+    /**
+     * Recount the comments of every blog post that has comments.
+     */
+    @Override
+    public void run() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            int repaired = 0;
+            Iterator<Resource> blogPosts = resolver.findResources(ALL_BLOGS_QUERY, "JCR-SQL2");
+
+            while (blogPosts.hasNext()) {
+                String commentsPath = blogPosts.next().getPath()
+                    .replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
+
+                if (repair(resolver, commentsPath)) {
+                    repaired++;
+                }
+            }
+
+            LOGGER.info("Repaired the comment count of {} blog posts", repaired);
+        } catch (LoginException e) {
+            LOGGER.error("Could not repair comment counts", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Set the comment count of a blog post to the number of its comments
+     * in its own commit, recounting on conflicts.
+     *
+     * @param resolver The administrative resource resolver.
+     * @param commentsPath The path of the comments of the blog post.
+     * @return true if the comment count was missing or wrong and repaired.
+     */
+    private boolean repair(ResourceResolver resolver, String commentsPath) {
+        for (int attempt = 1; ; attempt++) {
+            Resource commentsResource = resolver.getResource(commentsPath);
+
+            if (commentsResource == null) {
+                return false;
+            }
+
+            ModifiableValueMap properties = commentsResource.adaptTo(ModifiableValueMap.class);
+            long count = commentService.countComments(commentsResource);
+            Long stored = properties.get(RPGMConstants.PROP_COMMENT_COUNT, Long.class);
+
+            if (stored != null && stored == count) {
+                return false;
+            }
+
+            try {
+                properties.put(RPGMConstants.PROP_COMMENT_COUNT, count);
+                resolver.commit();
+                return true;
+            } catch (PersistenceException e) {
+                resolver.revert();
+                if (attempt >= MAX_REPAIR_ATTEMPTS) {
+                    LOGGER.error("Could not repair the comment count of " + commentsPath, e);
+                    return false;
+                }
+                LOGGER.warn("Could not repair comment count, recounting: " + e.getMessage());
+            }
+        }
+    }
+}
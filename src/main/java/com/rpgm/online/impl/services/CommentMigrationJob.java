@@ -0,0 +1,263 @@
+package com.rpgm.online.impl.services;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+
+/**
+ * Scheduled job moving the comments and replies stored directly below the
+ * comments node of a blog post or below other comments into the buckets
+ * of the day they were posted, keeping the comment they reply to as their
+ * parent and the comments node as their thread. Once all comments of a
+ * blog post have a thread its comments node is marked as threaded, so the
+ * comments are read with a single query. Comments are read from both
+ * layouts, so the job can run while the blog is in use. Moved comments
+ * keep their previous path, so replies to it from pages rendered before
+ * the move still find them. Threaded comments nodes are left alone, which
+ * makes further runs cheap.
+ */
+@Service(value = Runnable.class)
+@Component(metatype = true,
+           name = "RPGM comment migration",
+           description = "Moves comments into the buckets of the day they were posted and threads them.")
+@Properties({
+    @Property(name = "scheduler.expression",
+              value = "0 30 3 * * ?",
+              label = "Schedule",
+              description = "Quartz cron expression of when to migrate the comments."),
+    @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true)
+})
+public class CommentMigrationJob implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentMigrationJob.class);
+
+    /** JCR_SQL2 query to get all blog posts. */
+    private static final String ALL_BLOGS_QUERY = String.format("SELECT * FROM [%s] AS s WHERE "
+            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s'",
+        JcrConstants.NT_UNSTRUCTURED,
+        RPGMConstants.BLOG_PATH,
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        RPGMConstants.PAGE_TYPE_BLOG);
+
+    /** The number of comments moved per commit. */
+    private static final int BATCH_SIZE = 500;
+
+    /** Orders resources deepest first, so comments are moved before the comments they are stored below. */
+    private static final Comparator<Resource> DEEPEST_FIRST = new Comparator<Resource>() {
+        @Override
+        public int compare(Resource first, Resource second) {
+            return Integer.compare(depth(second.getPath()), depth(first.getPath()));
+        }
+    };
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    /**
+     * Migrate the comments of every blog post.
+     */
+    @Override
+    public void run() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            Session session = resolver.adaptTo(Session.class);
+
+            int migrated = 0;
+            Iterator<Resource> blogPosts = resolver.findResources(ALL_BLOGS_QUERY, "JCR-SQL2");
+
+            while (blogPosts.hasNext()) {
+                String commentsPath = blogPosts.next().getPath()
+                    .replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
+                Resource commentsResource = resolver.getResource(commentsPath);
+
+                if (commentsResource != null && !commentsResource.adaptTo(ValueMap.class)
+                        .get(RPGMConstants.PROP_COMMENTS_THREADED, false)) {
+                    migrated += migrate(resolver, session, commentsResource);
+                }
+            }
+
+            if (resolver.hasChanges()) {
+                resolver.commit();
+            }
+            LOGGER.info("Migrated {} comments", migrated);
+        } catch (LoginException | PersistenceException | RepositoryException e) {
+            LOGGER.error("Could not migrate comments", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Move the comments of a blog post that aren't in a bucket into the
+     * bucket of the day they were posted, renaming them if the bucket holds
+     * a comment of the same name, set the thread and parent of every
+     * comment and mark the comments node as threaded, committing in batches.
+     *
+     * @param resolver The administrative resource resolver.
+     * @param session The session of the resource resolver.
+     * @param commentsResource The comments resource of the blog post.
+     * @return The number of comments migrated.
+     */
+    private int migrate(ResourceResolver resolver, Session session, Resource commentsResource)
+            throws PersistenceException, RepositoryException {
+
+        String commentsPath = commentsResource.getPath();
+        int prefix = commentsPath.length() + 1;
+        List<Resource> comments = new ArrayList<>();
+        collectComments(commentsResource, comments);
+        Collections.sort(comments, DEEPEST_FIRST);
+
+        Map<String, String> migratedPaths = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+
+        for (Resource comment : comments) {
+            String path = comment.getPath().substring(prefix);
+            Calendar created = comment.adaptTo(ValueMap.class).get(JcrConstants.JCR_CREATED, Calendar.class);
+
+            if (created == null || isInBucket(path)) {
+                migratedPaths.put(path, path);
+                continue;
+            }
+
+            String bucket = CommentServiceImpl.getBucket(created.getTimeInMillis());
+            String migratedPath = bucket + "/" + comment.getName();
+
+            if (taken.contains(migratedPath) || commentsResource.getChild(migratedPath) != null) {
+                migratedPath = bucket + "/" + CommentServiceImpl.getCommentName(created.getTimeInMillis());
+            }
+
+            taken.add(migratedPath);
+            migratedPaths.put(path, migratedPath);
+        }
+
+        int migrated = 0;
+
+        for (Resource comment : comments) {
+            String path = comment.getPath().substring(prefix);
+            String migratedPath = migratedPaths.get(path);
+            ModifiableValueMap properties = comment.adaptTo(ModifiableValueMap.class);
+            String parent = properties.get(RPGMConstants.PROP_COMMENT_PARENT, String.class);
+
+            if (parent == null) {
+                String storedBelow = ResourceUtil.getParent(comment.getPath());
+                parent = storedBelow.length() > prefix ? storedBelow.substring(prefix) : null;
+                if (parent != null && CommentServiceImpl.isBucket(parent)) {
+                    parent = null;
+                }
+            }
+
+            if (!migratedPath.equals(path)) {
+                String bucket = migratedPath.substring(0, migratedPath.indexOf('/'));
+
+                if (commentsResource.getChild(bucket) == null) {
+                    Map<String, Object> bucketProperties = Collections.<String, Object>singletonMap(
+                        JcrConstants.JCR_PRIMARYTYPE, JcrResourceConstants.NT_SLING_FOLDER);
+                    resolver.create(commentsResource, bucket, bucketProperties);
+                }
+
+                session.move(comment.getPath(), commentsPath + "/" + migratedPath);
+                properties = resolver.getResource(commentsPath + "/" + migratedPath).adaptTo(ModifiableValueMap.class);
+                properties.put(RPGMConstants.PROP_COMMENT_MIGRATED_FROM, path);
+            }
+
+            properties.put(RPGMConstants.PROP_COMMENT_THREAD, commentsPath);
+            if (parent != null) {
+                properties.put(RPGMConstants.PROP_COMMENT_PARENT,
+                    migratedPaths.containsKey(parent) ? migratedPaths.get(parent) : parent);
+            }
+
+            if (++migrated % BATCH_SIZE == 0) {
+                resolver.commit();
+            }
+        }
+
+        ModifiableValueMap commentsProperties = commentsResource.adaptTo(ModifiableValueMap.class);
+        commentsProperties.put(RPGMConstants.PROP_COMMENTS_THREADED, true);
+        commentsProperties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+        resolver.commit();
+
+        return migrated;
+    }
+
+    /**
+     * Collect the comments below a resource at any depth, skipping buckets.
+     *
+     * @param resource The comments resource of the blog post, a bucket or a comment.
+     * @param comments The list to add the comment resources to.
+     */
+    private static void collectComments(Resource resource, List<Resource> comments) {
+        Iterator<Resource> children = resource.listChildren();
+
+        while (children.hasNext()) {
+            Resource child = children.next();
+
+            if (!CommentServiceImpl.isBucket(child.getName())) {
+                comments.add(child);
+            }
+            collectComments(child, comments);
+        }
+    }
+
+    /**
+     * Whether a comment is stored directly in a bucket.
+     *
+     * @param path The path of the comment relative to the comments of the blog post.
+     * @return true if the comment is in a bucket.
+     */
+    private static boolean isInBucket(String path) {
+        int slash = path.indexOf('/');
+
+        return slash > 0 && slash == path.lastIndexOf('/') && CommentServiceImpl.isBucket(path.substring(0, slash));
+    }
+
+    /**
+     * Get the depth of a path.
+     *
+     * @param path The path.
+     * @return The number of slashes in the path.
+     */
+    private static int depth(String path) {
+        int depth = 0;
+
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+}
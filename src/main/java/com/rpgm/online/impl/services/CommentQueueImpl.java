@@ -0,0 +1,504 @@
+package com.rpgm.online.impl.services;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.CommentQueue;
+import com.rpgm.online.services.CommentService;
+import com.rpgm.online.services.CommentSubmission;
+
+/**
+ * Comment queue accepting comments into a bounded in-memory queue. A
+ * single writer thread takes the queued comments in batches, waiting a
+ * few milliseconds for further comments after the first, and creates
+ * them together with the increased comment counts of their blog posts in
+ * one commit. If a batch can't be committed its comments are written one
+ * by one, so a single bad comment doesn't fail the others. Replies to
+ * comments that don't exist are left out of their batch and fail on their
+ * own without being retried. Replies to the path a migrated comment had
+ * before, from pages rendered before the migration, reply to the migrated
+ * comment. Comments are
+ * rejected while the queue is full. In durable mode submitting a comment
+ * waits for its commit.
+ */
+@Service(value = CommentQueue.class)
+@Component(metatype = true,
+           name = "RPGM comment queue",
+           description = "Queues new comments and commits them in batches.")
+@Properties({
+    @Property(name = CommentQueueImpl.CAPACITY,
+              intValue = CommentQueueImpl.DEFAULT_CAPACITY,
+              label = "Capacity",
+              description = "The maximum number of queued comments. Further comments are rejected."),
+    @Property(name = CommentQueueImpl.MAX_BATCH,
+              intValue = CommentQueueImpl.DEFAULT_MAX_BATCH,
+              label = "Maximum batch",
+              description = "The maximum number of comments committed together."),
+    @Property(name = CommentQueueImpl.BATCH_WAIT,
+              longValue = CommentQueueImpl.DEFAULT_BATCH_WAIT,
+              label = "Batch wait",
+              description = "How long in milliseconds the writer waits for further comments to commit together."),
+    @Property(name = CommentQueueImpl.DURABLE,
+              boolValue = CommentQueueImpl.DEFAULT_DURABLE,
+              label = "Durable",
+              description = "Acknowledge comments only once they have been committed."),
+    @Property(name = CommentQueueImpl.COMMIT_TIMEOUT,
+              longValue = CommentQueueImpl.DEFAULT_COMMIT_TIMEOUT,
+              label = "Commit timeout",
+              description = "How long in milliseconds a durable submission waits for the commit.")
+})
+public class CommentQueueImpl implements CommentQueue {
+
+    /** OSGi property name for the queue capacity */
+    static final String CAPACITY = "queue.capacity";
+
+    /** Default queue capacity */
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /** OSGi property name for the maximum batch size */
+    static final String MAX_BATCH = "queue.maxBatch";
+
+    /** Default maximum batch size */
+    static final int DEFAULT_MAX_BATCH = 100;
+
+    /** OSGi property name for the time to wait for further comments */
+    static final String BATCH_WAIT = "queue.batchWait";
+
+    /** Default time to wait for further comments */
+    static final long DEFAULT_BATCH_WAIT = 5;
+
+    /** OSGi property name for durable mode */
+    static final String DURABLE = "queue.durable";
+
+    /** Default value for durable mode */
+    static final boolean DEFAULT_DURABLE = true;
+
+    /** OSGi property name for the time a durable submission waits */
+    static final String COMMIT_TIMEOUT = "queue.commitTimeout";
+
+    /** Default time a durable submission waits */
+    static final long DEFAULT_COMMIT_TIMEOUT = 10000;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentQueueImpl.class);
+
+    /** How long in milliseconds the writer waits for a comment before checking whether it's stopped. */
+    private static final long POLL_INTERVAL = 500;
+
+    /** How long in milliseconds deactivation waits for the writer to write the queued comments. */
+    private static final long STOP_TIMEOUT = 10000;
+
+    /**
+     * How often writing a comment on its own is attempted when a
+     * concurrent change to the same blog post conflicts with it.
+     */
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    /** JCR_SQL2 query to get a comment of a thread by the path it had before it was migrated. */
+    private static final String MIGRATED_QUERY = "SELECT * FROM [" + JcrConstants.NT_UNSTRUCTURED + "] AS c "
+        + "WHERE c.[" + RPGMConstants.PROP_COMMENT_THREAD + "] = '%s' "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_MIGRATED_FROM + "] = '%s'";
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    /** Service naming new comments and counting comments of blog posts without a comment count. */
+    @Reference
+    private CommentService commentService = null;
+
+    /** The queued comments. */
+    private volatile BlockingQueue<PendingComment> queue;
+
+    /** The writer thread, null once stopped. */
+    private volatile Thread writer;
+
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private long batchWait = DEFAULT_BATCH_WAIT;
+    private boolean durable = DEFAULT_DURABLE;
+    private long commitTimeout = DEFAULT_COMMIT_TIMEOUT;
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        int capacity = Math.max(1, PropertiesUtil.toInteger(properties.get(CAPACITY), DEFAULT_CAPACITY));
+        maxBatch = Math.max(1, PropertiesUtil.toInteger(properties.get(MAX_BATCH), DEFAULT_MAX_BATCH));
+        batchWait = PropertiesUtil.toLong(properties.get(BATCH_WAIT), DEFAULT_BATCH_WAIT);
+        durable = PropertiesUtil.toBoolean(properties.get(DURABLE), DEFAULT_DURABLE);
+        commitTimeout = PropertiesUtil.toLong(properties.get(COMMIT_TIMEOUT), DEFAULT_COMMIT_TIMEOUT);
+
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeQueued();
+            }
+        }, "rpgm-comment-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        LOGGER.info("Comment queue of {} comments, {}", capacity, durable ? "durable" : "not durable");
+    }
+
+    /**
+     * Service deactivation. Stops accepting comments and waits for the
+     * writer to write the queued ones.
+     */
+    @Deactivate
+    protected void deactivate() {
+        Thread stopped = writer;
+        writer = null;
+
+        if (stopped != null) {
+            try {
+                stopped.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public CommentSubmission submit(String blogPath, String replyTo, String author, String comment,
+            boolean held) {
+        long now = System.currentTimeMillis();
+        BlockingQueue<PendingComment> pending = queue;
+
+        if (writer == null || pending == null) {
+            return new CommentSubmission(CommentSubmission.Status.REJECTED, null, now);
+        }
+
+        PendingComment queued = new PendingComment(blogPath, replyTo, commentService.getNewCommentPath(),
+            author, comment, held);
+
+        if (!pending.offer(queued)) {
+            return new CommentSubmission(CommentSubmission.Status.REJECTED, null, now);
+        }
+
+        CommentSubmission.Status status = CommentSubmission.Status.QUEUED;
+
+        if (durable) {
+            CommentSubmission.Status written = queued.await(commitTimeout);
+            if (written != null) {
+                status = written;
+            }
+        }
+
+        return new CommentSubmission(status, queued.path, now);
+    }
+
+    /**
+     * Write the queued comments in batches until the writer is stopped and
+     * the queue is empty.
+     */
+    private void writeQueued() {
+        Thread current = Thread.currentThread();
+        List<PendingComment> batch = new ArrayList<>(maxBatch);
+
+        while (writer == current || !queue.isEmpty()) {
+            try {
+                PendingComment first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + batchWait;
+
+                while (batch.size() < maxBatch) {
+                    PendingComment next = queue.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                write(batch);
+            } catch (InterruptedException e) {
+                current.interrupt();
+                break;
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not write comments", e);
+            } finally {
+                for (PendingComment comment : batch) {
+                    comment.complete(CommentSubmission.Status.FAILED);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write a batch of comments in one commit, falling back to writing them
+     * one by one if the commit fails. Replies to comments that don't exist
+     * or are held for moderation are left out, as they wouldn't be shown.
+     *
+     * @param batch The comments.
+     */
+    private void write(List<PendingComment> batch) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            List<PendingComment> valid = new ArrayList<>(batch.size());
+
+            for (PendingComment comment : batch) {
+                if (resolveReplyTo(resolver, comment)) {
+                    valid.add(comment);
+                } else {
+                    LOGGER.warn("Comment to reply to not found or held: " + comment.replyTo);
+                    comment.complete(CommentSubmission.Status.INVALID);
+                }
+            }
+
+            if (valid.isEmpty()) {
+                return;
+            }
+
+            try {
+                create(resolver, valid);
+                resolver.commit();
+                for (PendingComment comment : valid) {
+                    comment.complete(CommentSubmission.Status.COMMITTED);
+                }
+                LOGGER.debug("Committed {} comments", valid.size());
+                return;
+            } catch (PersistenceException | RepositoryException e) {
+                resolver.revert();
+                LOGGER.warn("Could not commit " + valid.size() + " comments together, writing them one by one: "
+                    + e.getMessage());
+            }
+
+            for (PendingComment comment : valid) {
+                comment.complete(writeSingle(resolver, comment));
+            }
+        } catch (LoginException e) {
+            LOGGER.error("Could not log in to write comments", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Write a single comment in its own commit, retrying on conflicts.
+     *
+     * @param resolver The administrative resource resolver.
+     * @param comment The comment.
+     * @return Committed, invalid if the comment replied to was removed or is held, or failed.
+     */
+    private CommentSubmission.Status writeSingle(ResourceResolver resolver, PendingComment comment) {
+        for (int attempt = 1; ; attempt++) {
+            if (!resolveReplyTo(resolver, comment)) {
+                LOGGER.warn("Comment to reply to not found or held: " + comment.replyTo);
+                return CommentSubmission.Status.INVALID;
+            }
+
+            try {
+                create(resolver, Collections.singletonList(comment));
+                resolver.commit();
+                return CommentSubmission.Status.COMMITTED;
+            } catch (PersistenceException | RepositoryException e) {
+                resolver.revert();
+                if (attempt >= MAX_SAVE_ATTEMPTS) {
+                    LOGGER.error("Could not create comment node for " + comment.blogPath, e);
+                    return CommentSubmission.Status.FAILED;
+                }
+                LOGGER.warn("Could not save comment, retrying: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create the comment nodes in their buckets with their thread and
+     * parent, and increase the comment counts of their blog posts by the
+     * comments not held for moderation, without committing. A new comments
+     * node is marked as threaded as all its comments have a thread. The
+     * comments replied to must exist.
+     *
+     * @param resolver The administrative resource resolver.
+     * @param comments The comments.
+     */
+    private void create(ResourceResolver resolver, List<PendingComment> comments)
+            throws PersistenceException, RepositoryException {
+
+        Map<String, Integer> added = new LinkedHashMap<>();
+
+        for (PendingComment comment : comments) {
+            String commentsPath = comment.blogPath.replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
+
+            if (resolver.getResource(commentsPath) == null) {
+                Resource commentsResource = ResourceUtil.getOrCreateResource(resolver, commentsPath,
+                    JcrResourceConstants.NT_SLING_ORDERED_FOLDER, JcrResourceConstants.NT_SLING_ORDERED_FOLDER, false);
+                commentsResource.adaptTo(ModifiableValueMap.class).put(RPGMConstants.PROP_COMMENTS_THREADED, true);
+            }
+
+            Resource bucketResource = ResourceUtil.getOrCreateResource(resolver,
+                commentsPath + "/" + StringUtils.substringBeforeLast(comment.path, "/"),
+                JcrResourceConstants.NT_SLING_FOLDER, JcrResourceConstants.NT_SLING_FOLDER, false);
+
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("author", comment.author);
+            properties.put("comment", comment.comment);
+            properties.put(RPGMConstants.PROP_COMMENT_THREAD, commentsPath);
+            if (StringUtils.isNotEmpty(comment.replyTo)) {
+                properties.put(RPGMConstants.PROP_COMMENT_PARENT, comment.replyTo);
+            }
+            if (comment.held) {
+                properties.put(RPGMConstants.PROP_COMMENT_HELD, true);
+            }
+            properties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+
+            Resource commentResource = resolver.create(bucketResource,
+                StringUtils.substringAfterLast(comment.path, "/"), properties);
+            Node commentNode = commentResource.adaptTo(Node.class);
+            commentNode.addMixin(NodeType.MIX_CREATED);
+
+            if (comment.held) {
+                continue;
+            }
+
+            Integer count = added.get(commentsPath);
+            added.put(commentsPath, count != null ? count + 1 : 1);
+        }
+
+        for (Map.Entry<String, Integer> entry : added.entrySet()) {
+            Resource commentsResource = resolver.getResource(entry.getKey());
+            ModifiableValueMap commentsProperties = commentsResource.adaptTo(ModifiableValueMap.class);
+            Long count = commentsProperties.get(RPGMConstants.PROP_COMMENT_COUNT, Long.class);
+            commentsProperties.put(RPGMConstants.PROP_COMMENT_COUNT,
+                count != null ? count + entry.getValue() : commentService.countComments(commentsResource));
+            commentsProperties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+        }
+    }
+
+    /**
+     * Whether a comment is top level or the comment it replies to exists
+     * and isn't held for moderation, replying to the migrated comment if it
+     * replies to the path a migrated comment had before.
+     *
+     * @param resolver The administrative resource resolver.
+     * @param comment The comment.
+     * @return false if the comment replied to doesn't exist or is held.
+     */
+    private static boolean resolveReplyTo(ResourceResolver resolver, PendingComment comment) {
+        if (StringUtils.isEmpty(comment.replyTo)) {
+            return true;
+        }
+
+        String commentsPath = comment.blogPath.replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
+
+        Resource replyTo = resolver.getResource(commentsPath + "/" + comment.replyTo);
+
+        if (replyTo == null) {
+            Iterator<Resource> migrated = resolver.findResources(String.format(MIGRATED_QUERY,
+                commentsPath.replace("'", "''"), comment.replyTo.replace("'", "''")), "JCR-SQL2");
+
+            if (!migrated.hasNext()) {
+                return false;
+            }
+
+            replyTo = migrated.next();
+            comment.replyTo = replyTo.getPath().substring(commentsPath.length() + 1);
+        }
+
+        return !replyTo.adaptTo(ValueMap.class).get(RPGMConstants.PROP_COMMENT_HELD, false);
+    }
+
+    /**
+     * A queued comment that its submitter may wait for.
+     */
+    private static final class PendingComment {
+
+        private final String blogPath;
+        /** The comment replied to, replaced by the writer with its new path if it was migrated. */
+        private String replyTo;
+        private final String path;
+        private final String author;
+        private final String comment;
+        private final boolean held;
+
+        /** Released once the comment has been written or failed. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** What became of the comment, set before the latch is released. */
+        private volatile CommentSubmission.Status status;
+
+        PendingComment(String blogPath, String replyTo, String path, String author, String comment,
+                boolean held) {
+            this.blogPath = blogPath;
+            this.replyTo = replyTo;
+            this.path = path;
+            this.author = author;
+            this.comment = comment;
+            this.held = held;
+        }
+
+        /**
+         * Record the result unless it has been recorded already.
+         *
+         * @param status What became of the comment.
+         */
+        void complete(CommentSubmission.Status status) {
+            if (done.getCount() > 0) {
+                this.status = status;
+                done.countDown();
+            }
+        }
+
+        /**
+         * Wait for the comment to be written.
+         *
+         * @param timeout The time to wait in milliseconds.
+         * @return What became of the comment, or null if it wasn't written in time.
+         */
+        CommentSubmission.Status await(long timeout) {
+            try {
+                return done.await(timeout, TimeUnit.MILLISECONDS) ? status : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+}
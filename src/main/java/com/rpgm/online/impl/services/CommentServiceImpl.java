@@ -0,0 +1,538 @@
+package com.rpgm.online.impl.services;
+
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.impl.cache.LruCache;
+import com.rpgm.online.services.Comment;
+import com.rpgm.online.services.CommentPage;
+import com.rpgm.online.services.CommentService;
+import com.rpgm.online.services.CommentTree;
+
+/**
+ * Comment service reading the comments of a blog post from the comments
+ * path and caching the immutable result per blog post.
+ * Cached trees are evicted on resource events under the comments path,
+ * which are sent once a new comment has been committed. The cache is
+ * bounded by the number of comments it holds.
+ * <p>
+ * Comments and replies are stored in unordered buckets by the UTC day they
+ * were posted, e.g. /content/rpgm/comments/2015/01/title/2015-01-31/comment_id,
+ * so no single node gets a large number of ordered children. Each comment
+ * keeps the path of the comments node of its blog post as its thread and
+ * the relative path of the comment it replies to as its parent. The thread
+ * of a blog post is read with a single query on the indexed thread
+ * property and assembled into a tree of any depth in memory.
+ * </p>
+ * <p>
+ * Comments nodes not yet marked as threaded by the {@link CommentMigrationJob}
+ * are walked instead, where replies without a parent reply to the comment
+ * they are stored below.
+ * </p>
+ */
+@Service(value = {CommentService.class, EventHandler.class, CacheStatistics.class})
+@Component(metatype = true,
+           name = "RPGM comment service",
+           description = "Reads and caches the comments of blog posts.")
+@Properties({
+    @Property(name = CommentServiceImpl.MAX_COMMENTS,
+              longValue = CommentServiceImpl.DEFAULT_MAX_COMMENTS,
+              label = "Maximum cached comments",
+              description = "The maximum number of comments held by the comment tree cache."),
+    @Property(name = CommentServiceImpl.DEFERRED,
+              boolValue = CommentServiceImpl.DEFAULT_DEFERRED,
+              label = "Deferred comments",
+              description = "Render blog posts without their comments and load the comments as a separate "
+                  + "fragment, so new comments don't invalidate the blog post page."),
+    @Property(name = EventConstants.EVENT_TOPIC,
+              value = {SlingConstants.TOPIC_RESOURCE_ADDED,
+                       SlingConstants.TOPIC_RESOURCE_CHANGED,
+                       SlingConstants.TOPIC_RESOURCE_REMOVED},
+              propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+              value = "(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.COMMENTS_PATH + "/*)",
+              propertyPrivate = true)
+})
+public class CommentServiceImpl implements CommentService, EventHandler, CacheStatistics {
+
+    /** OSGi property name for the maximum number of cached comments */
+    static final String MAX_COMMENTS = "cache.maxComments";
+
+    /** Default maximum number of cached comments */
+    static final long DEFAULT_MAX_COMMENTS = 10000;
+
+    /** OSGi property name for deferred comments */
+    static final String DEFERRED = "comments.deferred";
+
+    /** Default value for deferred comments */
+    static final boolean DEFAULT_DEFERRED = false;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentServiceImpl.class);
+
+    /** Prefix of comment names. */
+    static final String COMMENT_PREFIX = "comment_";
+
+    /** Separates the creation date from the comment name in a cursor. */
+    private static final char CURSOR_SEPARATOR = '~';
+
+    /** Date format for comments. */
+    private static final String DISPLAY_DATE_FORMAT = "MMMM dd, yyyy 'at' hh:mm a";
+
+    /** Date format of the bucket names. */
+    private static final String BUCKET_DATE_FORMAT = "yyyy-MM-dd";
+
+    /** Bucket names. */
+    private static final Pattern BUCKET_NAME = Pattern.compile("[0-9]{4}-[0-9]{2}-[0-9]{2}");
+
+    /** The number of distinct sequence numbers in a comment name. */
+    private static final int SEQUENCE_RANGE = 36 * 36 * 36 * 36;
+
+    /** JCR_SQL2 query to get the comments of a thread. */
+    private static final String THREAD_QUERY = "SELECT * FROM [" + JcrConstants.NT_UNSTRUCTURED + "] AS c "
+        + "WHERE c.[" + RPGMConstants.PROP_COMMENT_THREAD + "] = '%s'";
+
+    /** Orders comments by creation, then by name. */
+    private static final Comparator<Comment> CREATION_ORDER = new Comparator<Comment>() {
+        @Override
+        public int compare(Comment first, Comment second) {
+            int order = Long.compare(first.getCreated(), second.getCreated());
+            return order != 0 ? order : first.getPath().compareTo(second.getPath());
+        }
+    };
+
+    /** Distinguishes the comments named in the same millisecond by this instance. */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** Distinguishes the comments named by this instance from those of other cluster instances. */
+    private static final String INSTANCE_ID = StringUtils.leftPad(
+        Integer.toString(new SecureRandom().nextInt(SEQUENCE_RANGE), Character.MAX_RADIX), 4, '0');
+
+    /** Factory of the anonymous resource resolver the shared comment trees are read with. */
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    /** The cached comment trees keyed by comments path. */
+    private volatile LruCache<CommentTree> cache;
+
+    /** Incremented on every comment change, so trees read during a change aren't cached. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Whether the comments are loaded separately from the blog post. */
+    private boolean deferred = DEFAULT_DEFERRED;
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        long maxComments = PropertiesUtil.toLong(properties.get(MAX_COMMENTS), DEFAULT_MAX_COMMENTS);
+        deferred = PropertiesUtil.toBoolean(properties.get(DEFERRED), DEFAULT_DEFERRED);
+
+        cache = new LruCache<>(maxComments, new LruCache.Weigher<CommentTree>() {
+            @Override
+            public long weigh(CommentTree tree) {
+                return tree.getCount() + 1;
+            }
+        });
+        LOGGER.info("Comment tree cache limited to {} comments", maxComments);
+    }
+
+    @Override
+    public CommentTree getCommentTree(String blogPath) {
+        String commentsPath = blogPath.replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
+        CommentTree tree = cache.get(commentsPath);
+
+        if (tree == null) {
+            long readGeneration = generation.get();
+            ResourceResolver resolver = null;
+
+            try {
+                resolver = resourceResolverFactory.getResourceResolver(null);
+                tree = readCommentTree(resolver, resolver.getResource(commentsPath));
+            } catch (LoginException e) {
+                LOGGER.error("Could not log in to read the comments " + commentsPath, e);
+                return new CommentTree(Collections.<Comment>emptyList(), 0);
+            } finally {
+                if (resolver != null) {
+                    resolver.close();
+                }
+            }
+
+            if (generation.get() == readGeneration) {
+                cache.put(commentsPath, tree);
+            }
+        }
+
+        return tree;
+    }
+
+    @Override
+    public CommentPage getCommentPage(String blogPath, String parent, String cursor, int limit,
+            boolean newestFirst) {
+
+        CommentTree tree = getCommentTree(blogPath);
+        List<Comment> comments = tree.getComments();
+
+        if (StringUtils.isNotEmpty(parent)) {
+            Comment parentComment = tree.find(parent);
+            comments = parentComment != null ? parentComment.getReplies() : Collections.<Comment>emptyList();
+        }
+
+        if (newestFirst) {
+            comments = new ArrayList<>(comments);
+            Collections.reverse(comments);
+        }
+
+        int start = StringUtils.isNotEmpty(cursor) ? seek(comments, cursor, newestFirst) : 0;
+        int end = limit > 0 ? (int)Math.min((long)start + limit, comments.size()) : comments.size();
+        List<Comment> items = new ArrayList<>(comments.subList(start, end));
+        String next = end < comments.size() ? getCursor(items.get(items.size() - 1)) : null;
+
+        return new CommentPage(items, comments.size(), next);
+    }
+
+    @Override
+    public long getCommentCount(ResourceResolver resolver, String blogPath) {
+        Resource commentsResource = resolver.getResource(
+            blogPath.replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH));
+
+        if (commentsResource == null) {
+            return 0;
+        }
+
+        Long count = commentsResource.adaptTo(ValueMap.class).get(RPGMConstants.PROP_COMMENT_COUNT, Long.class);
+
+        return count != null ? count : countComments(commentsResource);
+    }
+
+    @Override
+    public long countComments(Resource commentsResource) {
+        long count = 0;
+        Iterator<Resource> children = commentsResource.listChildren();
+
+        while (children.hasNext()) {
+            Resource child = children.next();
+            boolean counted = !isBucket(child.getName())
+                && !child.adaptTo(ValueMap.class).get(RPGMConstants.PROP_COMMENT_HELD, false);
+            count += (counted ? 1 : 0) + countComments(child);
+        }
+
+        return count;
+    }
+
+    @Override
+    public String getNewCommentPath() {
+        long now = System.currentTimeMillis();
+
+        return getBucket(now) + "/" + getCommentName(now);
+    }
+
+    @Override
+    public String getDisplayDate(long time) {
+        return new SimpleDateFormat(DISPLAY_DATE_FORMAT).format(new Date(time));
+    }
+
+    @Override
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Evict the comment trees affected by the changed comment.
+     *
+     * @param event The resource event.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String)event.getProperty(SlingConstants.PROPERTY_PATH);
+
+        if (path == null) {
+            return;
+        }
+
+        generation.incrementAndGet();
+
+        for (String key : cache.keys()) {
+            if (key.equals(path) || path.startsWith(key + "/") || key.startsWith(path + "/")) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public String getCacheName() {
+        return "commentTrees";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Get the bucket of the top level comments posted at a time.
+     *
+     * @param time The time in milliseconds.
+     * @return The bucket name.
+     */
+    static String getBucket(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(BUCKET_DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Whether a node below the comments of a blog post is a bucket rather
+     * than a comment.
+     *
+     * @param name The node name.
+     * @return true if the node is a bucket.
+     */
+    static boolean isBucket(String name) {
+        return BUCKET_NAME.matcher(name).matches();
+    }
+
+    /**
+     * Get a unique comment name from the time, a sequence number and the
+     * ID of this instance. Names of the same length sort by creation.
+     *
+     * @param time The time in milliseconds.
+     * @return The comment name.
+     */
+    static String getCommentName(long time) {
+        int sequence = (SEQUENCE.getAndIncrement() & Integer.MAX_VALUE) % SEQUENCE_RANGE;
+
+        return COMMENT_PREFIX
+            + StringUtils.leftPad(Long.toString(time, Character.MAX_RADIX), 9, '0')
+            + StringUtils.leftPad(Integer.toString(sequence, Character.MAX_RADIX), 4, '0')
+            + INSTANCE_ID;
+    }
+
+    /**
+     * Get the cursor of a comment from its creation date and name, so that
+     * paging can continue even if the comment has been removed.
+     *
+     * @param comment The comment.
+     * @return The cursor.
+     */
+    private static String getCursor(Comment comment) {
+        return Long.toString(comment.getCreated(), Character.MAX_RADIX) + CURSOR_SEPARATOR + comment.getPath();
+    }
+
+    /**
+     * Get the position of the first comment following the comment of the cursor.
+     *
+     * @param comments The comments in order.
+     * @param cursor The cursor of the last comment already seen.
+     * @param newestFirst Whether the comments are ordered newest first.
+     * @return The position of the first comment following the cursor.
+     */
+    private static int seek(List<Comment> comments, String cursor, boolean newestFirst) {
+        int separator = cursor.indexOf(CURSOR_SEPARATOR);
+        String name = separator >= 0 ? cursor.substring(separator + 1) : cursor;
+        long created;
+
+        try {
+            created = separator >= 0 ? Long.parseLong(cursor.substring(0, separator), Character.MAX_RADIX) : 0;
+        } catch (NumberFormatException e) {
+            created = 0;
+        }
+
+        for (int i = 0; i < comments.size(); i++) {
+            if (comments.get(i).getPath().equals(name)) {
+                return i + 1;
+            }
+        }
+
+        for (int i = 0; i < comments.size(); i++) {
+            long commentCreated = comments.get(i).getCreated();
+            if (newestFirst ? commentCreated < created : commentCreated > created) {
+                return i;
+            }
+        }
+
+        return comments.size();
+    }
+
+    /**
+     * Read the comments of a blog post, with a query on the thread if the
+     * comments node is threaded or by walking it otherwise, and assemble
+     * them into a tree ordered by creation. Comments held for moderation are
+     * left out, and so are replies to missing or held comments like the
+     * replies of removed comments stored below them. Replies to the path a
+     * migrated comment had before are replies to the migrated comment.
+     *
+     * @param resolver The resource resolver of the current user.
+     * @param resource The comments resource of the blog post or null if it has none.
+     * @return The comment tree.
+     */
+    private CommentTree readCommentTree(ResourceResolver resolver, Resource resource) {
+        if (resource == null) {
+            return new CommentTree(Collections.<Comment>emptyList(), 0);
+        }
+
+        List<Resource> commentResources = new ArrayList<>();
+
+        if (resource.adaptTo(ValueMap.class).get(RPGMConstants.PROP_COMMENTS_THREADED, false)) {
+            Iterator<Resource> found = resolver.findResources(
+                String.format(THREAD_QUERY, resource.getPath().replace("'", "''")), "JCR-SQL2");
+            while (found.hasNext()) {
+                commentResources.add(found.next());
+            }
+        } else {
+            collectComments(resource, commentResources);
+        }
+
+        int prefix = resource.getPath().length() + 1;
+        Map<String, CommentNode> nodes = new HashMap<>();
+        Map<String, String> migratedPaths = new HashMap<>();
+
+        for (Resource commentResource : commentResources) {
+            String path = commentResource.getPath().substring(prefix);
+            ValueMap properties = commentResource.adaptTo(ValueMap.class);
+            if (properties.get(RPGMConstants.PROP_COMMENT_HELD, false)) {
+                continue;
+            }
+
+            String parent = properties.get(RPGMConstants.PROP_COMMENT_PARENT, String.class);
+
+            if (parent == null) {
+                String storedBelow = ResourceUtil.getParent(commentResource.getPath());
+                parent = storedBelow.length() > prefix ? storedBelow.substring(prefix) : null;
+                if (parent != null && isBucket(parent)) {
+                    parent = null;
+                }
+            }
+
+            nodes.put(path, new CommentNode(path, parent, properties));
+
+            String migratedFrom = properties.get(RPGMConstants.PROP_COMMENT_MIGRATED_FROM, String.class);
+            if (migratedFrom != null) {
+                migratedPaths.put(migratedFrom, path);
+            }
+        }
+
+        List<CommentNode> roots = new ArrayList<>();
+
+        for (CommentNode comment : nodes.values()) {
+            String parent = nodes.containsKey(comment.parent) ? comment.parent : migratedPaths.get(comment.parent);
+
+            if (comment.parent == null) {
+                roots.add(comment);
+            } else if (nodes.containsKey(parent)) {
+                nodes.get(parent).replies.add(comment);
+            }
+        }
+
+        return new CommentTree(toComments(roots, new SimpleDateFormat(DISPLAY_DATE_FORMAT)), nodes.size(),
+            migratedPaths);
+    }
+
+    /**
+     * Collect the comments below a resource at any depth, skipping buckets.
+     *
+     * @param resource The comments resource of the blog post, a bucket or a comment.
+     * @param commentResources The list to add the comment resources to.
+     */
+    private static void collectComments(Resource resource, List<Resource> commentResources) {
+        Iterator<Resource> children = resource.listChildren();
+
+        while (children.hasNext()) {
+            Resource child = children.next();
+
+            if (!isBucket(child.getName())) {
+                commentResources.add(child);
+            }
+            collectComments(child, commentResources);
+        }
+    }
+
+    /**
+     * Create the immutable comments of the valid pending comments and their
+     * replies, ordered by creation. Invalid comments are left out with their
+     * replies.
+     *
+     * @param pending The pending comments.
+     * @param dateFormat The display date format.
+     * @return The comments in order.
+     */
+    private static List<Comment> toComments(List<CommentNode> pending, SimpleDateFormat dateFormat) {
+        List<Comment> comments = new ArrayList<>();
+
+        for (CommentNode comment : pending) {
+            if (StringUtils.isNotBlank(comment.author) && StringUtils.isNotBlank(comment.comment)
+                    && comment.created != null) {
+
+                comments.add(new Comment(comment.path, comment.author, comment.comment,
+                    comment.created.getTimeInMillis(), dateFormat.format(comment.created.getTime()),
+                    toComments(comment.replies, dateFormat)));
+            }
+        }
+
+        Collections.sort(comments, CREATION_ORDER);
+
+        return comments;
+    }
+
+    /**
+     * A comment read from the repository whose replies are being collected.
+     */
+    private static final class CommentNode {
+
+        private final String path;
+        private final String parent;
+        private final String author;
+        private final String comment;
+        private final Calendar created;
+        private final List<CommentNode> replies = new ArrayList<>();
+
+        CommentNode(String path, String parent, ValueMap properties) {
+            this.path = path;
+            this.parent = parent;
+            this.author = properties.get("author", String.class);
+            this.comment = properties.get("comment", String.class);
+            this.created = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.rpgm.online.impl.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.PostSummary;
+import com.rpgm.online.services.PublishedPostIndex;
+
+/**
+ * Published blog post index built from the repository on activation and
+ * patched from resource events under the blog path. Readers work on an
+ * immutable sorted array; each change swaps in a patched copy, which is
+ * cheap as posts are created and edited far less often than listed.
+ * Events received while the index is built are buffered and applied once
+ * it is built, as the query may have read the posts before they changed.
+ */
+@Service(value = {PublishedPostIndex.class, EventHandler.class})
+@Component(immediate = true)
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC,
+              value = {SlingConstants.TOPIC_RESOURCE_ADDED,
+                       SlingConstants.TOPIC_RESOURCE_CHANGED,
+                       SlingConstants.TOPIC_RESOURCE_REMOVED}),
+    @Property(name = EventConstants.EVENT_FILTER,
+              value = "(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.BLOG_PATH + "/*)")
+})
+public class PublishedPostIndexImpl implements PublishedPostIndex, EventHandler {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PublishedPostIndexImpl.class);
+
+    /**
+     * JCR_SQL2 query to get all blog posts. Visibility is checked for
+     * each post so that the same check applies on build and on change.
+     */
+    private static final String ALL_BLOGS_QUERY = String.format("SELECT * FROM [%s] AS s WHERE "
+            + "ISDESCENDANTNODE([%s]) AND s.[%s] = '%s'",
+        JcrConstants.NT_UNSTRUCTURED,
+        RPGMConstants.BLOG_PATH,
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        RPGMConstants.PAGE_TYPE_BLOG);
+
+    /**
+     * Orders blog posts newest first, breaking ties on the created date by path.
+     */
+    private static final Comparator<PostSummary> NEWEST_FIRST = new Comparator<PostSummary>() {
+        @Override
+        public int compare(PostSummary a, PostSummary b) {
+            if (a.getCreated() != b.getCreated()) {
+                return a.getCreated() > b.getCreated() ? -1 : 1;
+            }
+
+            return b.getPath().compareTo(a.getPath());
+        }
+    };
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    /** The published blog posts in order of newest first, null until built. */
+    private volatile PostSummary[] posts = null;
+
+    /** When the published blog posts last changed in milliseconds. */
+    private volatile long lastModified = 0;
+
+    /** The events received while the index is built, null when it isn't being built. */
+    private List<Event> pending = null;
+
+    /**
+     * Build the index from the repository.
+     */
+    @Activate
+    protected void activate() {
+        synchronized (this) {
+            pending = new ArrayList<>();
+        }
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            List<PostSummary> summaries = new ArrayList<>();
+            Iterator<Resource> blogPosts = resolver.findResources(ALL_BLOGS_QUERY, "JCR-SQL2");
+
+            while (blogPosts.hasNext()) {
+                PostSummary summary = summarize(blogPosts.next());
+                if (summary != null) {
+                    summaries.add(summary);
+                }
+            }
+
+            PostSummary[] index = summaries.toArray(new PostSummary[summaries.size()]);
+            Arrays.sort(index, NEWEST_FIRST);
+
+            List<Event> changed;
+            synchronized (this) {
+                posts = index;
+                lastModified = System.currentTimeMillis();
+                changed = pending;
+                pending = null;
+            }
+            LOGGER.info("Indexed {} published blog posts", index.length);
+
+            for (Event event : changed) {
+                apply(event);
+            }
+        } catch (LoginException e) {
+            LOGGER.error("Could not build published blog post index", e);
+            synchronized (this) {
+                pending = null;
+            }
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return posts != null;
+    }
+
+    @Override
+    public int size() {
+        PostSummary[] index = posts;
+
+        return index != null ? index.length : 0;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public List<PostSummary> getPosts(long offset, long limit) {
+        PostSummary[] index = posts;
+
+        if (index == null) {
+            return Collections.emptyList();
+        }
+
+        return window(index, (int)Math.min(Math.max(offset, 0), index.length), limit);
+    }
+
+    @Override
+    public List<PostSummary> getPostsAfter(long created, String path, long limit) {
+        PostSummary[] index = posts;
+
+        if (index == null) {
+            return Collections.emptyList();
+        }
+
+        int position = Arrays.binarySearch(index, new PostSummary(path, created, null, null, null), NEWEST_FIRST);
+        int start = position >= 0 ? position + 1 : -(position + 1);
+
+        return window(index, start, limit);
+    }
+
+    /**
+     * Patch the index for the changed resource. Blog posts are added,
+     * replaced or removed according to their visibility; removing a
+     * folder removes every post below it. While the index is built the
+     * event is buffered instead.
+     *
+     * @param event The resource event.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        synchronized (this) {
+            if (posts == null) {
+                if (pending != null) {
+                    pending.add(event);
+                }
+                return;
+            }
+        }
+
+        apply(event);
+    }
+
+    /**
+     * Patch the index for the changed resource, reading its current state.
+     * Reading and patching happen under one lock, so a buffered event
+     * replayed after activation can't overwrite the state a live event for
+     * the same post read later.
+     *
+     * @param event The resource event.
+     */
+    private synchronized void apply(Event event) {
+        String path = (String)event.getProperty(SlingConstants.PROPERTY_PATH);
+
+        if (path == null) {
+            return;
+        }
+
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic())) {
+            remove(path);
+            return;
+        }
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            Resource resource = resolver.getResource(path);
+
+            if (resource != null && RPGMConstants.PAGE_TYPE_BLOG.equals(resource.getResourceType())) {
+                PostSummary summary = summarize(resource);
+
+                if (summary != null) {
+                    put(summary);
+                } else {
+                    remove(path);
+                }
+            }
+        } catch (LoginException e) {
+            LOGGER.error("Could not update published blog post index", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Add or replace a blog post in the index.
+     *
+     * @param summary The blog post summary.
+     */
+    private synchronized void put(PostSummary summary) {
+        PostSummary[] index = posts;
+        List<PostSummary> patched = new ArrayList<>(index.length + 1);
+
+        for (PostSummary post : index) {
+            if (!post.getPath().equals(summary.getPath())) {
+                patched.add(post);
+            }
+        }
+
+        int position = Collections.binarySearch(patched, summary, NEWEST_FIRST);
+        patched.add(position >= 0 ? position : -(position + 1), summary);
+
+        posts = patched.toArray(new PostSummary[patched.size()]);
+        lastModified = System.currentTimeMillis();
+    }
+
+    /**
+     * Remove a blog post and every blog post below it from the index.
+     *
+     * @param path The path of the removed resource.
+     */
+    private synchronized void remove(String path) {
+        PostSummary[] index = posts;
+        List<PostSummary> patched = new ArrayList<>(index.length);
+        String descendants = path + "/";
+
+        for (PostSummary post : index) {
+            if (!post.getPath().equals(path) && !post.getPath().startsWith(descendants)) {
+                patched.add(post);
+            }
+        }
+
+        if (patched.size() != index.length) {
+            posts = patched.toArray(new PostSummary[patched.size()]);
+            lastModified = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Get a window of the index.
+     *
+     * @param index The index.
+     * @param start The position of the first blog post.
+     * @param limit The number of blog posts, 0 for all.
+     * @return The blog posts in the window.
+     */
+    private List<PostSummary> window(PostSummary[] index, int start, long limit) {
+        int end = limit > 0 ? (int)Math.min((long)start + limit, index.length) : index.length;
+
+        return Collections.unmodifiableList(Arrays.asList(index).subList(start, Math.max(start, end)));
+    }
+
+    /**
+     * Summarize a blog post resource.
+     *
+     * @param resource The blog post resource.
+     * @return The blog post summary or null if the blog post isn't published.
+     */
+    private PostSummary summarize(Resource resource) {
+        ValueMap properties = resource.adaptTo(ValueMap.class);
+
+        if (properties == null || !properties.get(RPGMConstants.PROP_BLOG_VISIBLE, false)) {
+            return null;
+        }
+
+        Calendar created = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+
+        return new PostSummary(resource.getPath(),
+            created != null ? created.getTimeInMillis() : 0,
+            properties.get("title", String.class),
+            properties.get("description", String.class),
+            properties.get("image", String.class));
+    }
+}
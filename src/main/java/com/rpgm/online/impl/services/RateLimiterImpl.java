@@ -0,0 +1,299 @@
+package com.rpgm.online.impl.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.services.RateLimiter;
+
+/**
+ * Rate limiter keeping a token bucket per endpoint and client. A bucket
+ * holds up to the configured number of requests and refills over the
+ * configured period. It is kept as the single time at which it will be
+ * full again, updated with compare and set, so clients never wait on a
+ * lock. The buckets are spread over stripes by key, each bounded in size.
+ * <p>
+ * A bucket that has filled up again is the same as no bucket, so buckets
+ * expire once full and are removed periodically. When a stripe is full a
+ * new client takes the place of a bucket from a small sample of the stripe,
+ * one that has expired or else the one closest to full, so no client goes
+ * untracked and a full stripe costs no scan of all its buckets. Removing a
+ * bucket while its client is making a request may allow the client one
+ * request more than its limit.
+ * </p>
+ */
+@Service(value = {RateLimiter.class, Runnable.class, CacheStatistics.class})
+@Component(metatype = true,
+           name = "RPGM rate limiter",
+           description = "Limits how often a client may post comments and send emails.")
+@Properties({
+    @Property(name = RateLimiterImpl.LIMITS,
+              value = {"sendmail:5:600", "comment:10:60"},
+              label = "Limits",
+              description = "The limit of every endpoint as endpoint:requests:seconds, e.g. comment:10:60 "
+                  + "allows a client 10 comments in a burst, refilling over 60 seconds. Endpoints without a "
+                  + "limit aren't limited."),
+    @Property(name = RateLimiterImpl.MAX_CLIENTS,
+              intValue = RateLimiterImpl.DEFAULT_MAX_CLIENTS,
+              label = "Maximum clients",
+              description = "The maximum number of buckets tracked across all endpoints."),
+    @Property(name = RateLimiterImpl.STRIPES,
+              intValue = RateLimiterImpl.DEFAULT_STRIPES,
+              label = "Stripes",
+              description = "The number of stripes the buckets are spread over, rounded up to a power of two."),
+    @Property(name = "scheduler.period", longValue = 60, propertyPrivate = true),
+    @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true)
+})
+public class RateLimiterImpl implements RateLimiter, Runnable, CacheStatistics {
+
+    /** OSGi property name for the limits */
+    static final String LIMITS = "ratelimit.limits";
+
+    /** OSGi property name for the maximum number of buckets */
+    static final String MAX_CLIENTS = "ratelimit.maxClients";
+
+    /** Default maximum number of buckets */
+    static final int DEFAULT_MAX_CLIENTS = 10000;
+
+    /** OSGi property name for the number of stripes */
+    static final String STRIPES = "ratelimit.stripes";
+
+    /** Default number of stripes */
+    static final int DEFAULT_STRIPES = 16;
+
+    /** The number of buckets of a full stripe compared to choose the one to evict. */
+    private static final int EVICTION_SAMPLE = 8;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RateLimiterImpl.class);
+
+    /** The limits keyed by endpoint. */
+    private volatile Map<String, Limit> limits = new HashMap<>();
+
+    /** The buckets keyed by endpoint and client, each holding the time it is full again in nanoseconds. */
+    private volatile ConcurrentMap<String, AtomicLong>[] stripes;
+
+    /** The maximum number of buckets of a stripe. */
+    private int maxStripeSize;
+
+    /** The number of buckets evicted before they were full as their stripe was full. */
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    @SuppressWarnings("unchecked")
+    protected void activate(Map<String, Object> properties) {
+        Map<String, Limit> configured = new HashMap<>();
+
+        for (String value : PropertiesUtil.toStringArray(properties.get(LIMITS), new String[0])) {
+            String[] parts = StringUtils.split(value, ':');
+
+            try {
+                int requests = Integer.parseInt(parts[1].trim());
+                long seconds = Long.parseLong(parts[2].trim());
+                configured.put(parts[0].trim(), new Limit(requests, TimeUnit.SECONDS.toNanos(seconds)));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                LOGGER.warn("Ignoring invalid rate limit " + value);
+            }
+        }
+
+        int maxClients = Math.max(PropertiesUtil.toInteger(properties.get(MAX_CLIENTS), DEFAULT_MAX_CLIENTS), 1);
+        int stripeCount = Integer.highestOneBit(
+            Math.max(PropertiesUtil.toInteger(properties.get(STRIPES), DEFAULT_STRIPES) - 1, 1)) << 1;
+        ConcurrentMap<String, AtomicLong>[] created = new ConcurrentMap[stripeCount];
+
+        for (int i = 0; i < stripeCount; i++) {
+            created[i] = new ConcurrentHashMap<>();
+        }
+
+        maxStripeSize = Math.max(maxClients / stripeCount, 1);
+        stripes = created;
+        limits = configured;
+        LOGGER.info("Rate limiting {}", configured.keySet());
+    }
+
+    /**
+     * Remove the expired buckets.
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+
+        for (ConcurrentMap<String, AtomicLong> stripe : stripes) {
+            expire(stripe, now);
+        }
+    }
+
+    @Override
+    public long acquire(final String endpoint, final String client) {
+        Limit limit = limits.get(endpoint);
+
+        if (limit == null) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        String key = endpoint + ' ' + client;
+        ConcurrentMap<String, AtomicLong> stripe = getStripe(key);
+        AtomicLong full = stripe.get(key);
+
+        if (full == null) {
+            if (stripe.size() >= maxStripeSize) {
+                evict(stripe, now);
+            }
+
+            AtomicLong created = new AtomicLong(now);
+            full = stripe.putIfAbsent(key, created);
+            if (full == null) {
+                full = created;
+            }
+        }
+
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, now) + limit.interval;
+            long wait = next - now - limit.period;
+
+            if (wait > 0) {
+                limit.rejected.incrementAndGet();
+                return Math.max(TimeUnit.NANOSECONDS.toMillis(wait), 1);
+            }
+            if (full.compareAndSet(current, next)) {
+                limit.allowed.incrementAndGet();
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public String getCacheName() {
+        return "rateLimiter";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long clients = 0;
+
+        for (ConcurrentMap<String, AtomicLong> stripe : stripes) {
+            clients += stripe.size();
+        }
+
+        stats.put("clients", clients);
+        stats.put("evicted", evicted.get());
+
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            stats.put(entry.getKey() + ".allowed", entry.getValue().allowed.get());
+            stats.put(entry.getKey() + ".rejected", entry.getValue().rejected.get());
+            stats.put(entry.getKey() + ".evicted", entry.getValue().evicted.get());
+        }
+
+        return stats;
+    }
+
+    /**
+     * Get the stripe of a bucket.
+     *
+     * @param key The key of the bucket.
+     * @return The stripe.
+     */
+    private ConcurrentMap<String, AtomicLong> getStripe(String key) {
+        ConcurrentMap<String, AtomicLong>[] current = stripes;
+        int hash = key.hashCode();
+
+        return current[(hash ^ (hash >>> 16)) & (current.length - 1)];
+    }
+
+    /**
+     * Remove the buckets of a stripe that are full again.
+     *
+     * @param stripe The stripe.
+     * @param now The current time in nanoseconds.
+     */
+    private static void expire(ConcurrentMap<String, AtomicLong> stripe, long now) {
+        Iterator<AtomicLong> buckets = stripe.values().iterator();
+
+        while (buckets.hasNext()) {
+            if (buckets.next().get() - now <= 0) {
+                buckets.remove();
+            }
+        }
+    }
+
+    /**
+     * Make room in a full stripe looking at a sample of its buckets only.
+     * The first expired bucket of the sample is removed, otherwise the one
+     * that will be full again first, the client of the sample that loses
+     * the least allowance by being forgotten.
+     *
+     * @param stripe The stripe.
+     * @param now The current time in nanoseconds.
+     */
+    private void evict(ConcurrentMap<String, AtomicLong> stripe, long now) {
+        Iterator<Map.Entry<String, AtomicLong>> buckets = stripe.entrySet().iterator();
+        Map.Entry<String, AtomicLong> fullest = null;
+
+        for (int i = 0; i < EVICTION_SAMPLE && buckets.hasNext(); i++) {
+            Map.Entry<String, AtomicLong> bucket = buckets.next();
+
+            if (bucket.getValue().get() - now <= 0) {
+                buckets.remove();
+                return;
+            }
+            if (fullest == null || bucket.getValue().get() - fullest.getValue().get() < 0) {
+                fullest = bucket;
+            }
+        }
+
+        if (fullest != null && stripe.remove(fullest.getKey(), fullest.getValue())) {
+            Limit limit = limits.get(StringUtils.substringBefore(fullest.getKey(), " "));
+
+            evicted.incrementAndGet();
+            if (limit != null) {
+                limit.evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The limit of an endpoint and the number of requests allowed and
+     * rejected and of buckets evicted before they were full.
+     */
+    private static final class Limit {
+
+        /** The nanoseconds to refill one request. */
+        private final long interval;
+
+        /** The nanoseconds to refill an empty bucket. */
+        private final long period;
+
+        private final AtomicLong allowed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong evicted = new AtomicLong();
+
+        Limit(int requests, long period) {
+            this.interval = Math.max(period / Math.max(requests, 1), 1);
+            this.period = period;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.rpgm.online.services.ClientAddressService;
 import com.rpgm.online.services.OsgiConfigurationService;
 import com.rpgm.online.services.RecaptchaService;
 
@@ -61,6 +62,10 @@ public class RecaptchaServiceImpl implements RecaptchaService {
     @Reference
     private OsgiConfigurationService osgiService;
 
+    /** Service to get the address of the client to verify. */
+    @Reference
+    private ClientAddressService clientAddressService;
+
     /** PID of the current OSGi component */
     private static final String COMPONENT_PID = "RPGM reCAPTCHA settings";
 
@@ -162,7 +167,7 @@ public class RecaptchaServiceImpl implements RecaptchaService {
      * @return true if not a robot
      */
     public boolean validate(final SlingHttpServletRequest request) {
-        return validate(request.getParameter(RECAPTCHA_REQUEST_PARAMETER), getIPAddress(request));
+        return validate(request.getParameter(RECAPTCHA_REQUEST_PARAMETER), clientAddressService.getClientAddress(request));
     }
 
     /**
@@ -235,20 +240,4 @@ public class RecaptchaServiceImpl implements RecaptchaService {
     @Deactivate
     protected void deactivate(ComponentContext ctx) {
     }
-
-    /**
-     * Get the submitter's IP address.
-     *
-     * @param request The SlingHttpServlet request.
-     * @return The submitter's IP address.
-     */
-    private String getIPAddress(final SlingHttpServletRequest request) {
-        String ipAddress = request.getHeader("X-FORWARDED-FOR");
-
-        if (ipAddress == null) {
-            ipAddress = request.getRemoteAddr();
-        }
-
-        return ipAddress;
-    }
 }
\ No newline at end of file
@@ -0,0 +1,493 @@
+package com.rpgm.online.impl.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.services.SpamFilter;
+
+/**
+ * Naive Bayes spam filter scoring submissions by the words of the author
+ * and the text. Words are hashed into a fixed number of features whose
+ * spam and ham counts are kept in two int arrays, so scoring allocates
+ * little more than the features and takes microseconds. The filter only
+ * gives an opinion once it has been trained with enough spam and ham,
+ * until then every submission is ham. As nothing is held until then, it
+ * is trained with the published comments moderators approve or mark as
+ * spam as well as with the held ones.
+ * <p>
+ * Scoring reads the counts without locking while training updates them,
+ * which at worst scores a submission with a training decision half
+ * applied. The model is persisted to the repository periodically when it
+ * changed and on deactivation, and loaded on activation.
+ * </p>
+ */
+@Service(value = {SpamFilter.class, Runnable.class, CacheStatistics.class})
+@Component(metatype = true,
+           immediate = true,
+           name = "RPGM spam filter",
+           description = "Scores comments and emails as spam before they are verified with reCAPTCHA.")
+@Properties({
+    @Property(name = SpamFilterImpl.ENABLED,
+              boolValue = SpamFilterImpl.DEFAULT_ENABLED,
+              label = "Enabled",
+              description = "Score submissions. When disabled every submission is ham."),
+    @Property(name = SpamFilterImpl.FEATURES,
+              intValue = SpamFilterImpl.DEFAULT_FEATURES,
+              label = "Features",
+              description = "The number of hashed word features, rounded up to a power of two. "
+                  + "Changing it discards the trained model."),
+    @Property(name = SpamFilterImpl.SUSPECT_THRESHOLD,
+              doubleValue = SpamFilterImpl.DEFAULT_SUSPECT_THRESHOLD,
+              label = "Suspect threshold",
+              description = "The spam probability from which comments are held for moderation."),
+    @Property(name = SpamFilterImpl.SPAM_THRESHOLD,
+              doubleValue = SpamFilterImpl.DEFAULT_SPAM_THRESHOLD,
+              label = "Spam threshold",
+              description = "The spam probability from which submissions are rejected."),
+    @Property(name = SpamFilterImpl.MIN_TRAINING,
+              intValue = SpamFilterImpl.DEFAULT_MIN_TRAINING,
+              label = "Minimum training",
+              description = "The number of spam and of ham submissions to train with before classifying."),
+    @Property(name = "scheduler.period", longValue = 300, propertyPrivate = true),
+    @Property(name = "scheduler.concurrent", boolValue = false, propertyPrivate = true)
+})
+public class SpamFilterImpl implements SpamFilter, Runnable, CacheStatistics {
+
+    /** OSGi property name for enabled */
+    static final String ENABLED = "spam.enabled";
+
+    /** Default value for enabled */
+    static final boolean DEFAULT_ENABLED = true;
+
+    /** OSGi property name for the number of features */
+    static final String FEATURES = "spam.features";
+
+    /** Default number of features */
+    static final int DEFAULT_FEATURES = 65536;
+
+    /** OSGi property name for the suspect threshold */
+    static final String SUSPECT_THRESHOLD = "spam.suspectThreshold";
+
+    /** Default suspect threshold */
+    static final double DEFAULT_SUSPECT_THRESHOLD = 0.8;
+
+    /** OSGi property name for the spam threshold */
+    static final String SPAM_THRESHOLD = "spam.spamThreshold";
+
+    /** Default spam threshold */
+    static final double DEFAULT_SPAM_THRESHOLD = 0.99;
+
+    /** OSGi property name for the minimum training */
+    static final String MIN_TRAINING = "spam.minTraining";
+
+    /** Default minimum training */
+    static final int DEFAULT_MIN_TRAINING = 20;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpamFilterImpl.class);
+
+    /** The path of the persisted model. */
+    private static final String MODEL_PATH = "/etc/rpgm/spamfilter";
+
+    /** The binary property holding the persisted model. */
+    private static final String MODEL_PROPERTY = "model";
+
+    /** The version of the persisted model format. */
+    private static final int MODEL_VERSION = 1;
+
+    /** The maximum number of characters of the author and of the text scored. */
+    private static final int MAX_CHARACTERS = 10000;
+
+    /** Words shorter than this are ignored. */
+    private static final int MIN_WORD_LENGTH = 2;
+
+    /** Words longer than this are cut. */
+    private static final int MAX_WORD_LENGTH = 24;
+
+    /** FNV-1a offset basis of the words of the text. */
+    private static final int TEXT_BASIS = 0x811c9dc5;
+
+    /** FNV-1a offset basis of the words of the author, so they are features of their own. */
+    private static final int AUTHOR_BASIS = 0x050c5d1f;
+
+    /** FNV-1a prime. */
+    private static final int PRIME = 0x01000193;
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory = null;
+
+    /** The model, replaced on activation. */
+    private volatile Model model;
+
+    private boolean enabled = DEFAULT_ENABLED;
+    private double suspectThreshold = DEFAULT_SUSPECT_THRESHOLD;
+    private double spamThreshold = DEFAULT_SPAM_THRESHOLD;
+    private int minTraining = DEFAULT_MIN_TRAINING;
+
+    /** The number of submissions classified as ham. */
+    private final AtomicLong hamCount = new AtomicLong();
+
+    /** The number of submissions classified as suspect. */
+    private final AtomicLong suspectCount = new AtomicLong();
+
+    /** The number of submissions classified as spam. */
+    private final AtomicLong spamCount = new AtomicLong();
+
+    /**
+     * Service activation, loading the persisted model.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        enabled = PropertiesUtil.toBoolean(properties.get(ENABLED), DEFAULT_ENABLED);
+        suspectThreshold = PropertiesUtil.toDouble(properties.get(SUSPECT_THRESHOLD), DEFAULT_SUSPECT_THRESHOLD);
+        spamThreshold = PropertiesUtil.toDouble(properties.get(SPAM_THRESHOLD), DEFAULT_SPAM_THRESHOLD);
+        minTraining = Math.max(PropertiesUtil.toInteger(properties.get(MIN_TRAINING), DEFAULT_MIN_TRAINING), 1);
+
+        int features = Integer.highestOneBit(
+            Math.max(PropertiesUtil.toInteger(properties.get(FEATURES), DEFAULT_FEATURES) - 1, 1)) << 1;
+        Model loaded = load();
+
+        if (loaded != null && loaded.spamCounts.length != features) {
+            LOGGER.warn("Discarding the spam model of {} features for one of {}", loaded.spamCounts.length, features);
+            loaded = null;
+        }
+
+        model = loaded != null ? loaded : new Model(features);
+    }
+
+    /**
+     * Service deactivation, persisting the model.
+     */
+    @Deactivate
+    protected void deactivate() {
+        run();
+    }
+
+    /**
+     * Persist the model if it was trained since it was last persisted.
+     */
+    @Override
+    public void run() {
+        Model current = model;
+
+        if (current == null || !current.dirty) {
+            return;
+        }
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            Resource modelResource = ResourceUtil.getOrCreateResource(resolver, MODEL_PATH,
+                JcrResourceConstants.NT_SLING_FOLDER, JcrResourceConstants.NT_SLING_FOLDER, false);
+            modelResource.adaptTo(ModifiableValueMap.class)
+                .put(MODEL_PROPERTY, new ByteArrayInputStream(current.toBytes()));
+            resolver.commit();
+        } catch (LoginException | PersistenceException e) {
+            current.dirty = true;
+            LOGGER.error("Could not persist the spam model", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    @Override
+    public double score(final String author, final String text) {
+        Model current = model;
+
+        return current.score(getFeatures(author, text, current.spamCounts.length - 1));
+    }
+
+    @Override
+    public Verdict classify(final String author, final String text) {
+        Model current = model;
+        Verdict verdict = Verdict.HAM;
+
+        if (enabled && current.spamDocs >= minTraining && current.hamDocs >= minTraining) {
+            double score = score(author, text);
+
+            if (score >= spamThreshold) {
+                verdict = Verdict.SPAM;
+            } else if (score >= suspectThreshold) {
+                verdict = Verdict.SUSPECT;
+            }
+        }
+
+        (verdict == Verdict.SPAM ? spamCount : verdict == Verdict.SUSPECT ? suspectCount : hamCount)
+            .incrementAndGet();
+
+        return verdict;
+    }
+
+    @Override
+    public void train(final String author, final String text, final boolean spam) {
+        Model current = model;
+
+        current.train(getFeatures(author, text, current.spamCounts.length - 1), spam);
+    }
+
+    @Override
+    public String getCacheName() {
+        return "spamFilter";
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Model current = model;
+        Map<String, Object> stats = new LinkedHashMap<>();
+
+        stats.put("features", current.spamCounts.length);
+        stats.put("trainedSpam", current.spamDocs);
+        stats.put("trainedHam", current.hamDocs);
+        stats.put("ham", hamCount.get());
+        stats.put("suspect", suspectCount.get());
+        stats.put("spam", spamCount.get());
+
+        return stats;
+    }
+
+    /**
+     * Get the features of a submission.
+     *
+     * @param author The name of the submitter, may be null.
+     * @param text The submitted text, may be null.
+     * @param mask The mask of the feature bits.
+     * @return The features, one per word.
+     */
+    private static int[] getFeatures(String author, String text, int mask) {
+        int authorLength = author != null ? Math.min(author.length(), MAX_CHARACTERS) : 0;
+        int textLength = text != null ? Math.min(text.length(), MAX_CHARACTERS) : 0;
+        int[] features = new int[(authorLength + textLength) / (MIN_WORD_LENGTH + 1) + 2];
+        int count = hash(author, authorLength, AUTHOR_BASIS, mask, features, 0);
+        count = hash(text, textLength, TEXT_BASIS, mask, features, count);
+
+        return Arrays.copyOf(features, count);
+    }
+
+    /**
+     * Hash the words of a string into features. Words are runs of letters
+     * and digits, lower cased and hashed with FNV-1a as they are read.
+     *
+     * @param value The string, may be null.
+     * @param length The number of characters of the string to hash.
+     * @param basis The hash offset basis, distinguishing the words of the author from those of the text.
+     * @param mask The mask of the feature bits.
+     * @param features The array to add the features to.
+     * @param count The number of features already in the array.
+     * @return The number of features in the array.
+     */
+    private static int hash(String value, int length, int basis, int mask, int[] features, int count) {
+        if (value == null) {
+            return count;
+        }
+
+        int hash = basis;
+        int wordLength = 0;
+
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? value.charAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(c)) {
+                if (wordLength++ < MAX_WORD_LENGTH) {
+                    hash = (hash ^ Character.toLowerCase(c)) * PRIME;
+                }
+            } else {
+                if (wordLength >= MIN_WORD_LENGTH) {
+                    features[count++] = (hash ^ (hash >>> 16)) & mask;
+                }
+                hash = basis;
+                wordLength = 0;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Load the persisted model.
+     *
+     * @return The model or null if none was persisted or it couldn't be read.
+     */
+    private Model load() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+            Resource modelResource = resolver.getResource(MODEL_PATH);
+
+            if (modelResource == null) {
+                return null;
+            }
+
+            InputStream is = modelResource.adaptTo(ValueMap.class).get(MODEL_PROPERTY, InputStream.class);
+            if (is == null) {
+                return null;
+            }
+
+            try {
+                return Model.fromStream(is);
+            } finally {
+                is.close();
+            }
+        } catch (LoginException | IOException e) {
+            LOGGER.error("Could not load the spam model", e);
+            return null;
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * The spam and ham counts of every feature and the numbers of spam and
+     * ham submissions and words trained with.
+     */
+    private static final class Model {
+
+        private final int[] spamCounts;
+        private final int[] hamCounts;
+
+        private volatile int spamDocs;
+        private volatile int hamDocs;
+        private volatile long spamWords;
+        private volatile long hamWords;
+
+        /** Whether the model was trained since it was last persisted. */
+        private volatile boolean dirty;
+
+        Model(int features) {
+            spamCounts = new int[features];
+            hamCounts = new int[features];
+        }
+
+        /**
+         * Get the probability of features being spam, with add-one
+         * smoothing of the word probabilities.
+         *
+         * @param features The features.
+         * @return The spam probability between 0 and 1.
+         */
+        double score(int[] features) {
+            double spamTotal = spamWords + spamCounts.length;
+            double hamTotal = hamWords + hamCounts.length;
+            double logOdds = Math.log((spamDocs + 1.0) / (hamDocs + 1.0)) + features.length * Math.log(hamTotal / spamTotal);
+
+            for (int feature : features) {
+                logOdds += Math.log((spamCounts[feature] + 1.0) / (hamCounts[feature] + 1.0));
+            }
+
+            return 1 / (1 + Math.exp(-logOdds));
+        }
+
+        /**
+         * Add the features of a submission to the counts.
+         *
+         * @param features The features.
+         * @param spam true if the submission is spam.
+         */
+        synchronized void train(int[] features, boolean spam) {
+            int[] counts = spam ? spamCounts : hamCounts;
+
+            for (int feature : features) {
+                counts[feature]++;
+            }
+
+            if (spam) {
+                spamWords += features.length;
+                spamDocs++;
+            } else {
+                hamWords += features.length;
+                hamDocs++;
+            }
+            dirty = true;
+        }
+
+        /**
+         * Write the model as deflated data, mostly zero counts.
+         *
+         * @return The bytes.
+         */
+        synchronized byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeInt(MODEL_VERSION);
+                out.writeInt(spamCounts.length);
+                out.writeInt(spamDocs);
+                out.writeInt(hamDocs);
+                out.writeLong(spamWords);
+                out.writeLong(hamWords);
+                for (int i = 0; i < spamCounts.length; i++) {
+                    out.writeInt(spamCounts[i]);
+                    out.writeInt(hamCounts[i]);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write the spam model", e);
+            }
+
+            dirty = false;
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Read a model written by {@link #toBytes()}.
+         *
+         * @param is The stream of the deflated data.
+         * @return The model.
+         */
+        static Model fromStream(InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(new InflaterInputStream(is));
+
+            if (in.readInt() != MODEL_VERSION) {
+                throw new IOException("Unknown spam model version");
+            }
+
+            Model model = new Model(in.readInt());
+            model.spamDocs = in.readInt();
+            model.hamDocs = in.readInt();
+            model.spamWords = in.readLong();
+            model.hamWords = in.readLong();
+            for (int i = 0; i < model.spamCounts.length; i++) {
+                model.spamCounts[i] = in.readInt();
+                model.hamCounts[i] = in.readInt();
+            }
+
+            return model;
+        }
+    }
+}
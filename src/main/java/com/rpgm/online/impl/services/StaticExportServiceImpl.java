@@ -0,0 +1,538 @@
+package com.rpgm.online.impl.services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.impl.request.InternalRequest;
+import com.rpgm.online.impl.request.InternalResponse;
+import com.rpgm.online.services.ExportProgress;
+import com.rpgm.online.services.PostSummary;
+import com.rpgm.online.services.PublishedPostIndex;
+import com.rpgm.online.services.StaticExportService;
+
+/**
+ * Static export rendering the published blog posts and the blog list pages
+ * as the anonymous user and writing them below a target directory, e.g.
+ * /content/rpgm/blog/2016/1/post.html. List pages after the first are
+ * written as blog.page-N.html for the web server to map ?page=N to.
+ *
+ * <p>After a change to a blog post or its comments only the affected post
+ * and, for post changes, the list pages are exported again, and exports
+ * of removed or hidden posts are deleted. Exports run one at a time on a
+ * single background thread and every file is written to a temporary file
+ * first and then renamed, so the web server never serves a partial page.</p>
+ */
+@Service(value = {StaticExportService.class, EventHandler.class})
+@Component(metatype = true,
+           immediate = true,
+           name = "RPGM static export",
+           description = "Exports the blog as static files for a plain web server.")
+@Properties({
+    @Property(name = StaticExportServiceImpl.DIRECTORY,
+              value = "",
+              label = "Directory",
+              description = "The directory to export to. Exporting is disabled when empty."),
+    @Property(name = StaticExportServiceImpl.INCREMENTAL,
+              boolValue = StaticExportServiceImpl.DEFAULT_INCREMENTAL,
+              label = "Incremental",
+              description = "Export the affected pages again when a blog post or comment changes."),
+    @Property(name = StaticExportServiceImpl.SERVER_NAME,
+              value = StaticExportServiceImpl.DEFAULT_SERVER_NAME,
+              label = "Server name",
+              description = "The host name pages are rendered for, used to map links."),
+    @Property(name = StaticExportServiceImpl.SERVER_PORT,
+              intValue = StaticExportServiceImpl.DEFAULT_SERVER_PORT,
+              label = "Server port",
+              description = "The port pages are rendered for, used to map links."),
+    @Property(name = EventConstants.EVENT_TOPIC,
+              value = {SlingConstants.TOPIC_RESOURCE_ADDED,
+                       SlingConstants.TOPIC_RESOURCE_CHANGED,
+                       SlingConstants.TOPIC_RESOURCE_REMOVED},
+              propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+              value = "(|(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.BLOG_PATH + "/*)"
+                  + "(" + SlingConstants.PROPERTY_PATH + "=" + RPGMConstants.COMMENTS_PATH + "/*))",
+              propertyPrivate = true)
+})
+public class StaticExportServiceImpl implements StaticExportService, EventHandler {
+
+    /** OSGi property name for the export directory */
+    static final String DIRECTORY = "export.directory";
+
+    /** OSGi property name for incremental exports */
+    static final String INCREMENTAL = "export.incremental";
+
+    /** Default value for incremental exports */
+    static final boolean DEFAULT_INCREMENTAL = true;
+
+    /** OSGi property name for the server name */
+    static final String SERVER_NAME = "export.serverName";
+
+    /** Default server name */
+    static final String DEFAULT_SERVER_NAME = "localhost";
+
+    /** OSGi property name for the server port */
+    static final String SERVER_PORT = "export.serverPort";
+
+    /** Default server port */
+    static final int DEFAULT_SERVER_PORT = 80;
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticExportServiceImpl.class);
+
+    /** The extension of exported pages. */
+    private static final String EXTENSION = ".html";
+
+    /** The blog list component holding the number of posts per page. */
+    private static final String BLOG_LIST_PATH = RPGMConstants.BLOG_PATH + "/jcr:content/mainContent/blogList";
+
+    /** The page size property. */
+    private static final String PAGE_SIZE_PROPERTY = "pageSize";
+
+    /** Default blog posts per list page. */
+    private static final long DEFAULT_POSTS_PER_PAGE = 5;
+
+    /** The file name of list pages after the first, relative to the blog path. */
+    private static final Pattern LIST_PAGE_FILE = Pattern.compile(
+        Pattern.quote(RPGMConstants.BLOG_PATH.substring(RPGMConstants.BLOG_PATH.lastIndexOf('/') + 1))
+            + "\\.page-(\\d+)" + Pattern.quote(EXTENSION));
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    private SlingRequestProcessor slingRequestProcessor;
+
+    @Reference
+    private PublishedPostIndex publishedPostIndex;
+
+    /** The export directory or null if exporting is disabled. */
+    private Path directory;
+
+    /** Whether changes are exported. */
+    private boolean incremental = DEFAULT_INCREMENTAL;
+
+    private String serverName = DEFAULT_SERVER_NAME;
+    private int serverPort = DEFAULT_SERVER_PORT;
+
+    /** The single thread running exports, null if exporting is disabled. */
+    private ExecutorService executor;
+
+    /** Whether a full export is queued or running. */
+    private final AtomicBoolean fullExportQueued = new AtomicBoolean();
+
+    /** Whether an update of the changed pages is queued. */
+    private final AtomicBoolean updateQueued = new AtomicBoolean();
+
+    /** The changed blog post paths, mapped to whether the list pages are affected. */
+    private final ConcurrentHashMap<String, Boolean> changes = new ConcurrentHashMap<>();
+
+    /** The progress of the running or last export. */
+    private ExportProgress progress = new ExportProgress(false, false, 0, 0, 0, 0, 0);
+
+    /**
+     * Service activation.
+     *
+     * @param properties The component configuration.
+     */
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        String path = PropertiesUtil.toString(properties.get(DIRECTORY), "");
+
+        directory = StringUtils.isNotBlank(path) ? Paths.get(path).toAbsolutePath() : null;
+        incremental = PropertiesUtil.toBoolean(properties.get(INCREMENTAL), DEFAULT_INCREMENTAL);
+        serverName = PropertiesUtil.toString(properties.get(SERVER_NAME), DEFAULT_SERVER_NAME);
+        serverPort = PropertiesUtil.toInteger(properties.get(SERVER_PORT), DEFAULT_SERVER_PORT);
+        changes.clear();
+
+        if (directory != null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "rpgm-static-export");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            LOGGER.info("Static export to {}", directory);
+        }
+    }
+
+    /**
+     * Service deactivation.
+     */
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        fullExportQueued.set(false);
+        updateQueued.set(false);
+    }
+
+    @Override
+    public boolean startExport() {
+        ExecutorService exports = executor;
+
+        if (exports == null || !fullExportQueued.compareAndSet(false, true)) {
+            return false;
+        }
+
+        exports.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    exportAll();
+                } finally {
+                    fullExportQueued.set(false);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public synchronized ExportProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Queue the export of the pages affected by a changed blog post or
+     * comment. A change to a blog post affects the post and the list pages,
+     * a change to a comment affects the post it belongs to.
+     *
+     * @param event The resource event.
+     */
+    @Override
+    public void handleEvent(Event event) {
+        String path = (String)event.getProperty(SlingConstants.PROPERTY_PATH);
+        ExecutorService exports = executor;
+
+        if (path == null || exports == null || !incremental) {
+            return;
+        }
+
+        boolean comment = path.startsWith(RPGMConstants.COMMENTS_PATH + "/");
+        String blogPath = comment ? RPGMConstants.BLOG_PATH + path.substring(RPGMConstants.COMMENTS_PATH.length()) : path;
+
+        if (!comment) {
+            changes.put(blogPath, Boolean.TRUE);
+        } else {
+            changes.putIfAbsent(blogPath, Boolean.FALSE);
+        }
+
+        if (updateQueued.compareAndSet(false, true)) {
+            exports.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateQueued.set(false);
+                    exportChanges();
+                }
+            });
+        }
+    }
+
+    /**
+     * Export every published blog post and list page and delete the exports
+     * of blog posts that are no longer published.
+     */
+    private void exportAll() {
+        if (!publishedPostIndex.isReady()) {
+            LOGGER.warn("Published blog post index not ready, skipping static export");
+            return;
+        }
+
+        List<PostSummary> posts = publishedPostIndex.getPosts(0, 0);
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getResourceResolver(null);
+            long pages = getNumberOfPages(resolver, posts.size());
+
+            begin(true, posts.size() + (int)pages);
+            LOGGER.info("Exporting {} blog posts and {} list pages", posts.size(), pages);
+
+            for (PostSummary post : posts) {
+                advance(exportPage(resolver, post.getPath(), 0));
+            }
+            exportListPages(resolver, pages);
+
+            deleteUnpublished(RPGMConstants.BLOG_PATH, getPaths(posts));
+        } catch (LoginException e) {
+            LOGGER.error("Could not log in to export the blog", e);
+        } finally {
+            finish();
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Export the pages affected by the queued changes.
+     */
+    private void exportChanges() {
+        if (changes.isEmpty() || !publishedPostIndex.isReady()) {
+            return;
+        }
+
+        Map<String, Boolean> changed = new HashMap<>();
+        for (String path : new ArrayList<>(changes.keySet())) {
+            Boolean lists = changes.remove(path);
+            if (lists != null) {
+                changed.put(path, lists);
+            }
+        }
+
+        List<PostSummary> posts = publishedPostIndex.getPosts(0, 0);
+        Set<String> published = getPaths(posts);
+        Set<String> affected = new HashSet<>();
+        boolean lists = changed.containsValue(Boolean.TRUE);
+
+        for (String path : changed.keySet()) {
+            for (String post : published) {
+                if (post.equals(path) || post.startsWith(path + "/") || path.startsWith(post + "/")) {
+                    affected.add(post);
+                }
+            }
+        }
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = resourceResolverFactory.getResourceResolver(null);
+            long pages = lists ? getNumberOfPages(resolver, posts.size()) : 0;
+
+            begin(false, affected.size() + (int)pages);
+
+            for (String post : affected) {
+                advance(exportPage(resolver, post, 0));
+            }
+            if (lists) {
+                exportListPages(resolver, pages);
+            }
+
+            for (String path : changed.keySet()) {
+                deleteUnpublished(path, published);
+            }
+        } catch (LoginException e) {
+            LOGGER.error("Could not log in to export the changed blog pages", e);
+        } finally {
+            finish();
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Export the blog list pages and delete list pages beyond the last one.
+     *
+     * @param resolver The anonymous resource resolver.
+     * @param pages The number of list pages.
+     */
+    private void exportListPages(ResourceResolver resolver, long pages) {
+        for (long page = 1; page <= Math.max(pages, 1); page++) {
+            advance(exportPage(resolver, RPGMConstants.BLOG_PATH, page));
+        }
+
+        Path listDirectory = getFile(RPGMConstants.BLOG_PATH, 0).getParent();
+        if (!Files.isDirectory(listDirectory)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(listDirectory)) {
+            for (Path file : files) {
+                Matcher matcher = LIST_PAGE_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) > pages) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.error("Could not delete exported list pages beyond page " + pages, e);
+        }
+    }
+
+    /**
+     * Render a page as the anonymous user and write it to the export directory.
+     *
+     * @param resolver The anonymous resource resolver.
+     * @param path The resource path.
+     * @param page The list page number, 0 for pages that aren't list pages.
+     * @return true if the page was exported.
+     */
+    private boolean exportPage(ResourceResolver resolver, String path, long page) {
+        Map<String, String[]> parameters = page > 1
+            ? Collections.singletonMap("page", new String[] {Long.toString(page)})
+            : null;
+        InternalRequest request = new InternalRequest("http", serverName, serverPort, path + EXTENSION, parameters);
+        InternalResponse response = new InternalResponse();
+
+        try {
+            slingRequestProcessor.processRequest(request, response, resolver);
+
+            if (response.getStatus() != InternalResponse.SC_OK) {
+                LOGGER.warn("Could not export " + path + ", rendering returned status " + response.getStatus());
+                return false;
+            }
+
+            write(getFile(path, page), response.getContent());
+            return true;
+        } catch (ServletException | IOException | RuntimeException e) {
+            LOGGER.error("Could not export " + path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Write a file atomically by writing a temporary file in the same
+     * directory and renaming it.
+     *
+     * @param file The file.
+     * @param content The content.
+     */
+    private void write(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), ".export-", ".tmp");
+
+        try {
+            Files.write(temp, content);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete the exports at or below a path that aren't published blog posts.
+     * The export of the blog path itself is the first list page and is kept.
+     *
+     * @param path The changed resource path.
+     * @param published The paths of the published blog posts.
+     */
+    private void deleteUnpublished(final String path, final Set<String> published) {
+        try {
+            if (!published.contains(path) && !path.equals(RPGMConstants.BLOG_PATH)) {
+                Files.deleteIfExists(getFile(path, 0));
+            }
+
+            final Path exported = directory.resolve(path.substring(1));
+            if (!Files.isDirectory(exported)) {
+                return;
+            }
+
+            Files.walkFileTree(exported, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                    String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+
+                    if (name.endsWith(EXTENSION)
+                            && !published.contains("/" + name.substring(0, name.length() - EXTENSION.length()))) {
+                        Files.delete(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Could not delete exports of unpublished blog posts below " + path, e);
+        }
+    }
+
+    /**
+     * Get the export file of a page.
+     *
+     * @param path The resource path.
+     * @param page The list page number, 0 for pages that aren't list pages.
+     * @return The export file.
+     */
+    private Path getFile(String path, long page) {
+        String name = path.substring(1) + (page > 1 ? ".page-" + page : "") + EXTENSION;
+
+        return directory.resolve(name);
+    }
+
+    /**
+     * Get the number of list pages from the page size of the blog list.
+     *
+     * @param resolver The anonymous resource resolver.
+     * @param posts The number of published blog posts.
+     * @return The number of list pages.
+     */
+    private long getNumberOfPages(ResourceResolver resolver, int posts) {
+        Resource blogList = resolver.getResource(BLOG_LIST_PATH);
+        long pageSize = blogList != null
+            ? blogList.adaptTo(ValueMap.class).get(PAGE_SIZE_PROPERTY, DEFAULT_POSTS_PER_PAGE)
+            : DEFAULT_POSTS_PER_PAGE;
+
+        return (long)Math.ceil((double)posts / Math.max(pageSize, 1));
+    }
+
+    private static Set<String> getPaths(List<PostSummary> posts) {
+        Set<String> paths = new HashSet<>();
+        for (PostSummary post : posts) {
+            paths.add(post.getPath());
+        }
+        return paths;
+    }
+
+    private synchronized void begin(boolean full, int total) {
+        progress = new ExportProgress(true, full, total, 0, 0, System.currentTimeMillis(), 0);
+    }
+
+    private synchronized void advance(boolean exported) {
+        progress = new ExportProgress(true, progress.isFull(), progress.getTotal(),
+            progress.getCompleted() + (exported ? 1 : 0), progress.getFailed() + (exported ? 0 : 1),
+            progress.getStarted(), 0);
+    }
+
+    private synchronized void finish() {
+        progress = new ExportProgress(false, progress.isFull(), progress.getTotal(), progress.getCompleted(),
+            progress.getFailed(), progress.getStarted(), System.currentTimeMillis());
+    }
+}
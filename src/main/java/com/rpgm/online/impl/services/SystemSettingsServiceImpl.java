@@ -1,5 +1,6 @@
 package com.rpgm.online.impl.services;
 
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -8,6 +9,7 @@ import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
@@ -34,6 +36,7 @@ public class SystemSettingsServiceImpl implements SystemSettingsService {
     private static final Logger LOGGER = LoggerFactory.getLogger(SystemSettingsService.class);
     private static final String SETTINGS_PATH = "/content/rpgm/admin/settings";
     private Map<String, Object> settings = new ConcurrentHashMap<>();
+    private volatile long version = 0;
     private static final boolean PROP_DEFAULT_RPGM_EXTENSIONLESS_URLS = false;
     private static final String PROP_DEFAULT_RPGM_BLOG_NAME = "RPGM";
 
@@ -42,15 +45,19 @@ public class SystemSettingsServiceImpl implements SystemSettingsService {
 
 
     @Override
-    public boolean setProperties(Map<String, Object> properties) {
+    public synchronized boolean setProperties(Map<String, Object> properties) {
         Resource settingsResource = getConfigurationResource();
         if (settingsResource != null) {
             ResourceResolver resolver = settingsResource.getResourceResolver();
             try {
                 settings.putAll(properties);
+                Calendar modified = Calendar.getInstance();
+                modified.setTimeInMillis(Math.max(modified.getTimeInMillis(), version + 1));
                 ModifiableValueMap modifiableValueMap = settingsResource.adaptTo(ModifiableValueMap.class);
                 modifiableValueMap.putAll(properties);
+                modifiableValueMap.put(JcrConstants.JCR_LASTMODIFIED, modified);
                 resolver.commit();
+                version = modified.getTimeInMillis();
                 return true;
             } catch (PersistenceException e) {
                 LOGGER.error("Unable to persist settings changes.", e);
@@ -86,6 +93,11 @@ public class SystemSettingsServiceImpl implements SystemSettingsService {
         }});
     }
 
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
     @Activate
     protected void activate(ComponentContext componentContext) {
         ResourceResolver resolver = null;
@@ -93,8 +105,11 @@ public class SystemSettingsServiceImpl implements SystemSettingsService {
             resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
             Resource settingsResource = resolver.getResource(SETTINGS_PATH);
             if (settingsResource != null) {
+                ValueMap properties = settingsResource.adaptTo(ValueMap.class);
+                Calendar modified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
                 settings.clear();
-                settings.putAll(settingsResource.adaptTo(ValueMap.class));
+                settings.putAll(properties);
+                version = modified != null ? modified.getTimeInMillis() : 0;
             }
         } catch (LoginException e) {
             LOGGER.error("Unable to read RPGM settings.", e);
@@ -0,0 +1,134 @@
+package com.rpgm.online.impl.servlets;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.BlogService;
+
+/**
+ * Get servlet of the blog list page to return summaries of published blog
+ * posts as JSON. The post content isn't included, as it is only rendered
+ * through the filtered HTML of the blog list. Posts are returned newest first
+ * following the post identified by the "after" cursor. The response
+ * includes the cursor to request the next posts with.
+ * <p>
+ * Request the posts with a GET request to a path similar to /content/rpgm/blog.posts.json?after=cursor&amp;limit=5.
+ * </p>
+ */
+@SlingServlet(
+    resourceTypes = RPGMConstants.PAGE_TYPE_BLOG_LIST,
+    selectors = "posts",
+    extensions = "json",
+    methods = "GET"
+)
+public class BlogPostsServlet extends SlingSafeMethodsServlet {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlogPostsServlet.class);
+
+    /** The querystring parameter holding the cursor of the last post already displayed. */
+    private static final String CURSOR_PARAMETER = "after";
+
+    /** The querystring parameter holding the number of posts to return. */
+    private static final String LIMIT_PARAMETER = "limit";
+
+    /** The default number of posts to return. */
+    private static final int DEFAULT_LIMIT = 5;
+
+    /** The maximum number of posts to return. */
+    private static final int MAX_LIMIT = 50;
+
+    /** Blog post date in ISO-8601 format per Open Graph specifications. */
+    private static final String PUBLISHED_DATE_FORMAT = "yyyy-MM-dd";
+
+    /** Service to get the published blog posts. */
+    @Reference
+    private BlogService blogService;
+
+    /**
+     * Write the blog post summaries to the response as they are read.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        final int limit = getLimit(request);
+        final List<Resource> posts = blogService.getPublishedPostsAfter(request,
+            request.getParameter(CURSOR_PARAMETER), limit);
+        final SimpleDateFormat dateFormatter = new SimpleDateFormat(PUBLISHED_DATE_FORMAT);
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        try {
+            JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object().key("posts").array();
+
+            for (Resource post : posts) {
+                ValueMap properties = post.adaptTo(ValueMap.class);
+                Calendar created = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+
+                writer.object()
+                    .key("title").value(properties.get("title", String.class))
+                    .key("url").value(post.getPath() + ".html")
+                    .key("description").value(properties.get("description", String.class))
+                    .key("image").value(properties.get("image", String.class))
+                    .key("month").value(properties.get("month", Long.class))
+                    .key("year").value(properties.get("year", Long.class))
+                    .key("keywords").value(new JSONArray(Arrays.asList(properties.get("keywords", new String[0]))))
+                    .key("publishedDate").value(created != null ? dateFormatter.format(created.getTime()) : null)
+                    .endObject();
+            }
+
+            writer.endArray();
+            writer.key("next").value(posts.size() == limit ? blogService.getCursor(posts.get(posts.size() - 1)) : null);
+            writer.endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
+    }
+
+    /**
+     * Get the number of posts to return from the querystring.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return The number of posts to return.
+     */
+    private int getLimit(SlingHttpServletRequest request) {
+        int limit = DEFAULT_LIMIT;
+        String param = request.getParameter(LIMIT_PARAMETER);
+
+        if (param != null) {
+            try {
+                limit = Integer.parseInt(param);
+            } catch (NumberFormatException e) {
+                LOGGER.error("Could not get limit", e);
+            }
+        }
+
+        return Math.min(Math.max(limit, 1), MAX_LIMIT);
+    }
+}
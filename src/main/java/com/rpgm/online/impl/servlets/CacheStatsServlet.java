@@ -0,0 +1,88 @@
+package com.rpgm.online.impl.servlets;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.impl.cache.CacheStatistics;
+import com.rpgm.online.services.UserService;
+
+/**
+ * Get servlet to return the statistics of the in-process caches as JSON.
+ */
+@SlingServlet(paths = RPGMConstants.SERVLET_PATH_ADMIN + "/cachestats")
+@Reference(name = "cacheStatistics",
+           referenceInterface = CacheStatistics.class,
+           cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE,
+           policy = ReferencePolicy.DYNAMIC)
+public class CacheStatsServlet extends AdminServlet {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatsServlet.class);
+
+    /** Service to determine if the current user has read permissions. */
+    @Reference
+    private UserService userService;
+
+    /** The registered caches. */
+    private final CopyOnWriteArrayList<CacheStatistics> caches = new CopyOnWriteArrayList<>();
+
+    /**
+     * Return the statistics of every registered cache keyed by cache name.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        if (!userService.isAuthorable(request.getResourceResolver())) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(response.getWriter(), "Error", "Current user not authorized.");
+            return;
+        }
+
+        try {
+            JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object();
+
+            for (CacheStatistics cache : caches) {
+                writer.key(cache.getCacheName()).object();
+                for (Map.Entry<String, Object> stat : cache.getStats().entrySet()) {
+                    writer.key(stat.getKey()).value(stat.getValue());
+                }
+                writer.endObject();
+            }
+
+            writer.endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
+    }
+
+    protected void bindCacheStatistics(CacheStatistics cache) {
+        caches.add(cache);
+    }
+
+    protected void unbindCacheStatistics(CacheStatistics cache) {
+        caches.remove(cache);
+    }
+}
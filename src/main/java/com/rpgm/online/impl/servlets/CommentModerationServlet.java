@@ -0,0 +1,275 @@
+package com.rpgm.online.impl.servlets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Iterator;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.CommentService;
+import com.rpgm.online.services.SpamFilter;
+import com.rpgm.online.services.UserService;
+
+/**
+ * Servlet to moderate the comments the spam filter held and the published
+ * comments. A GET request returns the held comments as JSON, oldest first,
+ * or with the "published" parameter the recent published comments not yet
+ * approved, newest first. A POST request with the path of a comment and the
+ * "approve" action publishes a held comment and marks the comment as
+ * approved, the "spam" action deletes it with its replies. Either way the
+ * spam filter is trained with the decision, so it learns from the published
+ * comments before it holds any.
+ */
+@SlingServlet(paths = RPGMConstants.SERVLET_PATH_ADMIN + "/comments")
+public class CommentModerationServlet extends AdminServlet {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentModerationServlet.class);
+
+    /** JCR_SQL2 query to get the held comments. */
+    private static final String HELD_QUERY = "SELECT * FROM [" + JcrConstants.NT_UNSTRUCTURED + "] AS c "
+        + "WHERE ISDESCENDANTNODE([" + RPGMConstants.COMMENTS_PATH + "]) "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_HELD + "] = true "
+        + "ORDER BY c.[" + JcrConstants.JCR_CREATED + "]";
+
+    /** JCR_SQL2 query to get the published comments not yet approved, newest first. */
+    private static final String PUBLISHED_QUERY = "SELECT * FROM [" + JcrConstants.NT_UNSTRUCTURED + "] AS c "
+        + "WHERE ISDESCENDANTNODE([" + RPGMConstants.COMMENTS_PATH + "]) "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_THREAD + "] IS NOT NULL "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_HELD + "] IS NULL "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_APPROVED + "] IS NULL "
+        + "ORDER BY c.[" + JcrConstants.JCR_CREATED + "] DESC";
+
+    /** JCR_SQL2 query to get the replies to a comment of a thread. */
+    private static final String REPLIES_QUERY = "SELECT * FROM [" + JcrConstants.NT_UNSTRUCTURED + "] AS c "
+        + "WHERE c.[" + RPGMConstants.PROP_COMMENT_THREAD + "] = '%s' "
+        + "AND c.[" + RPGMConstants.PROP_COMMENT_PARENT + "] = '%s'";
+
+    /** The maximum number of comments returned. */
+    private static final int MAX_COMMENTS = 200;
+
+    /** The request parameter to get the published comments instead of the held ones. */
+    private static final String PUBLISHED_PARAMETER = "published";
+
+    /** The request parameter holding the path of the comment. */
+    private static final String PATH_PARAMETER = "path";
+
+    /** The request parameter holding the decision. */
+    private static final String ACTION_PARAMETER = "action";
+
+    /** The action publishing the comment. */
+    private static final String ACTION_APPROVE = "approve";
+
+    /** The action deleting the comment as spam. */
+    private static final String ACTION_SPAM = "spam";
+
+    /** Service to determine if the current user has write permissions. */
+    @Reference
+    private UserService userService;
+
+    /** Service to format the comment dates. */
+    @Reference
+    private CommentService commentService;
+
+    /** The spam filter to train with the decisions. */
+    @Reference
+    private SpamFilter spamFilter;
+
+    /**
+     * Return the held comments or the published comments not yet approved.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        final ResourceResolver resolver = request.getResourceResolver();
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        if (!userService.isAuthorable(resolver)) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(response.getWriter(), "Error", "Current user not authorized.");
+            return;
+        }
+
+        try {
+            JSONWriter writer = new JSONWriter(response.getWriter());
+            boolean published = Boolean.parseBoolean(request.getParameter(PUBLISHED_PARAMETER));
+            Iterator<Resource> comments = resolver.findResources(published ? PUBLISHED_QUERY : HELD_QUERY, "JCR-SQL2");
+            writer.array();
+
+            for (int count = 0; comments.hasNext() && count < MAX_COMMENTS; count++) {
+                Resource comment = comments.next();
+                ValueMap properties = comment.adaptTo(ValueMap.class);
+                Calendar created = properties.get(JcrConstants.JCR_CREATED, Calendar.class);
+                String thread = properties.get(RPGMConstants.PROP_COMMENT_THREAD, String.class);
+
+                writer.object()
+                    .key("path").value(comment.getPath())
+                    .key("blog").value(thread != null
+                        ? thread.replace(RPGMConstants.COMMENTS_PATH, RPGMConstants.BLOG_PATH) : null)
+                    .key("author").value(properties.get("author", String.class))
+                    .key("comment").value(properties.get("comment", String.class))
+                    .key("date").value(created != null ? commentService.getDisplayDate(created.getTimeInMillis()) : null)
+                    .endObject();
+            }
+
+            writer.endArray();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
+    }
+
+    /**
+     * Approve a held or published comment or delete it as spam.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String path = request.getParameter(PATH_PARAMETER);
+        final String action = request.getParameter(ACTION_PARAMETER);
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        if (!userService.isAuthorable(resolver)) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(response.getWriter(), "Error", "Current user not authorized.");
+            return;
+        }
+
+        final Resource comment = StringUtils.startsWith(path, RPGMConstants.COMMENTS_PATH + "/")
+            ? resolver.getResource(path) : null;
+        final ValueMap properties = comment != null ? comment.adaptTo(ValueMap.class) : null;
+
+        if (properties == null || properties.get(RPGMConstants.PROP_COMMENT_THREAD, String.class) == null
+                || properties.get(RPGMConstants.PROP_COMMENT_APPROVED, false)
+                || !(ACTION_APPROVE.equals(action) || ACTION_SPAM.equals(action))) {
+            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            sendResponse(response.getWriter(), "Error", "No comment to approve or mark as spam.");
+            return;
+        }
+
+        final String author = properties.get("author", String.class);
+        final String text = properties.get("comment", String.class);
+        final String thread = properties.get(RPGMConstants.PROP_COMMENT_THREAD, String.class);
+        final boolean held = properties.get(RPGMConstants.PROP_COMMENT_HELD, false);
+        final boolean spam = ACTION_SPAM.equals(action);
+
+        try {
+            if (spam) {
+                long removed = deleteWithReplies(resolver, comment, thread);
+                if (removed > 0) {
+                    changeCommentCount(resolver, thread, -removed);
+                }
+            } else {
+                ModifiableValueMap modifiable = comment.adaptTo(ModifiableValueMap.class);
+                modifiable.remove(RPGMConstants.PROP_COMMENT_HELD);
+                modifiable.put(RPGMConstants.PROP_COMMENT_APPROVED, true);
+                if (held) {
+                    changeCommentCount(resolver, thread, 1);
+                }
+            }
+            resolver.commit();
+        } catch (PersistenceException e) {
+            LOGGER.error("Could not moderate comment " + path, e);
+            response.setStatus(SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            sendResponse(response.getWriter(), "Error", "Comment could not be moderated.");
+            return;
+        }
+
+        spamFilter.train(author, text, spam);
+
+        response.setStatus(SlingHttpServletResponse.SC_OK);
+        sendResponse(response.getWriter(), "OK", spam ? "Comment deleted as spam." : "Comment approved.");
+    }
+
+    /**
+     * Delete a comment with all its replies, the replies stored below it as
+     * well as the threaded replies naming it as their parent, so that no
+     * reply is left without the comment it replies to.
+     *
+     * @param resolver The resource resolver of the current user.
+     * @param comment The comment.
+     * @param thread The path of the comments node of the blog post.
+     * @return The number of deleted comments that weren't held for moderation.
+     */
+    private long deleteWithReplies(ResourceResolver resolver, Resource comment, String thread)
+            throws PersistenceException {
+
+        Deque<String> pending = new ArrayDeque<>();
+        long removed = 0;
+
+        pending.add(comment.getPath());
+
+        while (!pending.isEmpty()) {
+            String path = pending.poll();
+            Iterator<Resource> replies = resolver.findResources(String.format(REPLIES_QUERY,
+                thread.replace("'", "''"), path.substring(thread.length() + 1).replace("'", "''")), "JCR-SQL2");
+
+            while (replies.hasNext()) {
+                pending.add(replies.next().getPath());
+            }
+
+            Resource current = resolver.getResource(path);
+
+            if (current != null) {
+                boolean held = current.adaptTo(ValueMap.class).get(RPGMConstants.PROP_COMMENT_HELD, false);
+                removed += (held ? 0 : 1) + commentService.countComments(current);
+                resolver.delete(current);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Change the comment count kept on the comments node of a blog post,
+     * if it is kept already, and mark the comments as modified.
+     *
+     * @param resolver The resource resolver of the current user.
+     * @param thread The path of the comments node of the blog post.
+     * @param delta The number of comments published, negative for comments deleted.
+     */
+    private void changeCommentCount(ResourceResolver resolver, String thread, long delta) {
+        Resource commentsResource = resolver.getResource(thread);
+
+        if (commentsResource != null) {
+            ModifiableValueMap commentsProperties = commentsResource.adaptTo(ModifiableValueMap.class);
+            Long count = commentsProperties.get(RPGMConstants.PROP_COMMENT_COUNT, Long.class);
+
+            if (count != null) {
+                commentsProperties.put(RPGMConstants.PROP_COMMENT_COUNT, Math.max(count + delta, 0));
+            }
+            commentsProperties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+        }
+    }
+}
@@ -1,52 +1,73 @@
 package com.rpgm.online.impl.servlets;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import javax.jcr.Node;
-import javax.jcr.nodetype.NodeType;
+import java.util.regex.Pattern;
 import javax.servlet.ServletException;
 
+import org.apache.commons.lang.CharEncoding;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
-import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
-import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.ClientAddressService;
+import com.rpgm.online.services.CommentQueue;
+import com.rpgm.online.services.CommentService;
+import com.rpgm.online.services.CommentSubmission;
+import com.rpgm.online.services.RateLimiter;
 import com.rpgm.online.services.RecaptchaService;
+import com.rpgm.online.services.SpamFilter;
 
 /**
  * <p>
  * Add comment to blog post. Comments are stored under a different parent node as blog posts for ease of access control. The comment node
- * structure mirrors the blog post node structure and this servlet will create it.
+ * structure mirrors the blog post node structure and the comment queue will create it.
  * </p>
  * <p>
  * Blog posts are stored under: /content/blogs/2015/01/title
  * </p>
  * <p>
- * Comments are stored under: /content/comments/2015/01/title/comment_1
+ * Comments are stored under: /content/comments/2015/01/title/2015-01-31/comment_id, in a bucket
+ * for the day they were posted.
  * </p>
  * <p>
- * Comments can be nested two levels deep.
+ * Comments can be nested to any depth. Replies are stored in buckets like comments and keep the path
+ * of the comment they reply to.
+ * </p>
+ * <p>
+ * The number of comments of a blog post is kept in the commentCount property of
+ * its comments node, e.g. /content/comments/2015/01/title, and updated in the same
+ * commit as the comment.
+ * </p>
+ * <p>
+ * Comments are handed to the comment queue, which commits them in batches. A full queue
+ * is answered with 503 Service Unavailable.
+ * </p>
+ * <p>
+ * Clients posting too many comments are answered with 429 Too Many Requests.
+ * Comments are scored by the local spam filter before the reCAPTCHA service is called.
+ * Spam is rejected right away and suspected spam is held for moderation.
  * </p>
  * <p>
  * A comment can be created by issuing a POST request to a path similar to /content/blogs/2015/01/title.comment.html.
  * </p>
+ * <p>
+ * Posting to /content/blogs/2015/01/title.comment.json instead answers with a JSON response
+ * holding the status, a message and the created comment, rather than redirecting back to the
+ * blog post.
+ * </p>
  */
 @SlingServlet(
     resourceTypes = RPGMConstants.PAGE_TYPE_BLOG,
     selectors = "comment",
-    extensions = "html",
+    extensions = {"html", "json"},
     methods = "POST"
 )
 public class CommentServlet extends SlingAllMethodsServlet {
@@ -57,14 +78,46 @@ public class CommentServlet extends SlingAllMethodsServlet {
     @Reference
     private RecaptchaService recaptchaService = null;
 
+    /**
+     * Rate limiter to limit how often a client comments.
+     */
+    @Reference
+    private RateLimiter rateLimiter = null;
+
+    /**
+     * Client address service to get the address the rate limit applies to.
+     */
+    @Reference
+    private ClientAddressService clientAddressService = null;
+
+    /**
+     * Spam filter to reject spam before verifying with the reCAPTCHA service.
+     */
+    @Reference
+    private SpamFilter spamFilter = null;
+
+    /**
+     * Comment queue writing the comments.
+     */
+    @Reference
+    private CommentQueue commentQueue = null;
+
+    /**
+     * Comment service to format the date of the created comment.
+     */
     @Reference
-    private ResourceResolverFactory resourceResolverFactory = null;
+    private CommentService commentService = null;
 
     /**
      * The logger.
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(CommentServlet.class);
 
+    /**
+     * The extension of requests answered with JSON.
+     */
+    private static final String JSON_EXTENSION = "json";
+
     /**
      * Request parameter sent from the comment form for Author.
      */
@@ -75,13 +128,31 @@ public class CommentServlet extends SlingAllMethodsServlet {
      */
     private static final String COMMENT_PARAMETER = "comment";
 
+    /**
+     * The paths of the comments that can be replied to, in a bucket or not, or stored below another comment.
+     */
+    private static final Pattern REPLY_TO_PATTERN = Pattern.compile(
+        "([0-9]{4}-[0-9]{2}-[0-9]{2}/)?comment_[0-9a-z]+(/comment_[0-9a-z]+)*");
+
+    /**
+     * Seconds a client should wait before posting again when the comment queue is full.
+     */
+    private static final String RETRY_AFTER = "1";
+
+    /**
+     * The status of requests over the rate limit.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     /**
      * Save the comment to the JCR.
      * <p>
-     * Get or create the comment node structure to mirror the blog post node structure.
-     * Create the comment node under the structure and save the author, comment, and date.
-     * Currently redirects back to the same page. Verifies against the reCAPTCHA service.
-     * The next version will be an asynchronous post.
+     * Queue the comment for the comment writer, which creates the comment node
+     * under the comment node structure mirroring the blog post node structure.
+     * Verifies against the spam filter, then the reCAPTCHA service, and holds
+     * suspected spam for moderation. HTML requests are redirected back
+     * to the same page, JSON requests are answered with the created comment or
+     * the reason it wasn't created.
      *
      * @param request  The Sling HTTP servlet request.
      * @param response The Sling HTTP servlet response.
@@ -91,62 +162,132 @@ public class CommentServlet extends SlingAllMethodsServlet {
 
         final String blogPath = request.getResource().getPath();
         final String replyTo = request.getParameter("reply-to-comment");
+        final boolean json = JSON_EXTENSION.equals(request.getRequestPathInfo().getExtension());
+        final long wait = rateLimiter.acquire(RateLimiter.ENDPOINT_COMMENT, clientAddressService.getClientAddress(request));
+
+        if (wait > 0) {
+            response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+            sendError(response, json, SC_TOO_MANY_REQUESTS, "Too many comments were posted, please try again later.");
+            return;
+        }
+
+        if (StringUtils.isNotEmpty(replyTo) && !REPLY_TO_PATTERN.matcher(replyTo).matches()) {
+            sendError(response, json, SlingHttpServletResponse.SC_BAD_REQUEST, "The comment to reply to is invalid.");
+            return;
+        }
+
+        final String author = request.getParameter(AUTHOR_PARAMETER);
+        final String comment = request.getParameter(COMMENT_PARAMETER);
 
-        if (!recaptchaService.getEnabled() || recaptchaService.validate(request)) {
-            final String author = request.getParameter(AUTHOR_PARAMETER);
-            final String comment = request.getParameter(COMMENT_PARAMETER);
-
-            ResourceResolver resolver = null;
-            try {
-                resolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
-
-                String commentParentPath = blogPath.replace(RPGMConstants.BLOG_PATH, RPGMConstants.COMMENTS_PATH);
-                if (StringUtils.isNotEmpty(replyTo)) {
-                    commentParentPath = commentParentPath + "/" + replyTo;
-                }
-                Resource commentParentResource = ResourceUtil.getOrCreateResource(resolver, commentParentPath, JcrResourceConstants
-                        .NT_SLING_ORDERED_FOLDER, JcrResourceConstants.NT_SLING_ORDERED_FOLDER, true);
-
-                String commentPath = getCommentName(resolver, commentParentPath);
-                Map<String, Object> properties = new HashMap<>();
-                properties.put(AUTHOR_PARAMETER, author);
-                properties.put(COMMENT_PARAMETER, comment);
-                properties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
-
-                Resource commentResource = resolver.create(commentParentResource, commentPath, properties);
-                Node commentNode = commentResource.adaptTo(Node.class);
-                commentNode.addMixin(NodeType.MIX_CREATED);
-                resolver.commit();
-            } catch (Exception e) {
-                LOGGER.error("Could not create comment node", e);
-            } finally {
-                if (resolver != null && resolver.isLive()) {
-                    resolver.close();
-                }
+        if (json && (StringUtils.isBlank(author) || StringUtils.isBlank(comment))) {
+            sendError(response, true, SlingHttpServletResponse.SC_BAD_REQUEST,
+                "Submission was missing the name or comment.");
+            return;
+        }
+
+        final SpamFilter.Verdict verdict = spamFilter.classify(author, comment);
+
+        if (verdict == SpamFilter.Verdict.SPAM) {
+            if (json) {
+                sendError(response, true, SlingHttpServletResponse.SC_FORBIDDEN,
+                    "The comment was rejected as spam.");
+            } else {
+                response.sendRedirect(blogPath + ".html");
+            }
+            return;
+        }
+
+        if (recaptchaService.getEnabled() && !recaptchaService.validate(request)) {
+            if (json) {
+                sendError(response, true, SlingHttpServletResponse.SC_FORBIDDEN,
+                    "The reCAPTCHA service determined that you were a robot.");
+            } else {
+                response.sendRedirect(blogPath + ".html");
             }
+            return;
         }
 
-        response.sendRedirect(blogPath + ".html");
+        final boolean held = verdict == SpamFilter.Verdict.SUSPECT;
+        CommentSubmission submission = commentQueue.submit(blogPath, replyTo, author, comment, held);
+
+        if (submission.getStatus() == CommentSubmission.Status.REJECTED) {
+            response.setHeader("Retry-After", RETRY_AFTER);
+            sendError(response, json, SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Too many comments are being posted, please try again.");
+            return;
+        }
+
+        if (submission.getStatus() == CommentSubmission.Status.INVALID) {
+            sendError(response, json, SlingHttpServletResponse.SC_BAD_REQUEST, "The comment to reply to doesn't exist.");
+            return;
+        }
+
+        if (submission.getStatus() == CommentSubmission.Status.FAILED) {
+            sendError(response, json, SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error.");
+            return;
+        }
+
+        if (!json) {
+            response.sendRedirect(blogPath + ".html");
+            return;
+        }
+
+        int status = submission.getStatus() == CommentSubmission.Status.COMMITTED && !held
+            ? SlingHttpServletResponse.SC_CREATED
+            : SlingHttpServletResponse.SC_ACCEPTED;
+
+        response.setStatus(status);
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        try {
+            new JSONWriter(response.getWriter()).object()
+                .key("status").value(status)
+                .key("message").value(held
+                    ? "Comment is awaiting moderation." : "Comment was posted successfully.")
+                .key("held").value(held)
+                .key("replyTo").value(StringUtils.defaultIfEmpty(replyTo, null))
+                .key("comment").object()
+                    .key("id").value(submission.getPath())
+                    .key("author").value(author)
+                    .key("comment").value(comment)
+                    .key("date").value(commentService.getDisplayDate(submission.getSubmitted()))
+                    .key("replyCount").value(0)
+                    .endObject()
+                .endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
     }
 
     /**
-     * Get the first available node name for a comment. Comments are named
-     * "comment_1", "comment_2", etc... There is a limit of 1000 comments
-     * per parent node.
+     * Send an error status, with a JSON response holding the status and
+     * message for JSON requests.
      *
-     * @param parentPath The path of the parent node in the /content/comments
-     *                   node structure
-     * @return The first available node name.
+     * @param response The Sling HTTP servlet response.
+     * @param json true to send a JSON response.
+     * @param status The status such as 400 or 500.
+     * @param message The message to send.
      */
-    private String getCommentName(ResourceResolver resolver, final String parentPath) {
-        final int MAX_TRIES = 1000;
-        for (int i = 0; i < MAX_TRIES; i++) {
-            String commentName = "comment_" + System.currentTimeMillis();
-            String commentResourcePath = parentPath + "/" + commentName;
-            if (resolver.getResource(commentResourcePath) == null) {
-                return commentName;
-            }
+    private void sendError(SlingHttpServletResponse response, boolean json, int status, String message)
+            throws IOException {
+
+        if (!json) {
+            response.sendError(status);
+            return;
+        }
+
+        response.setStatus(status);
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        try {
+            new JSONWriter(response.getWriter()).object()
+                .key("status").value(status)
+                .key("message").value(message)
+                .endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
         }
-        throw new UnsupportedOperationException("DOS attempt through blog comments?! :)");
     }
 }
\ No newline at end of file
@@ -0,0 +1,130 @@
+package com.rpgm.online.impl.servlets;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.Comment;
+import com.rpgm.online.services.CommentPage;
+import com.rpgm.online.services.CommentService;
+
+/**
+ * Get servlet to return a page of the comments of a blog post as JSON,
+ * oldest first or newest first, following the comment identified by the
+ * "after" cursor. With the "replies" parameter the replies to that comment
+ * are returned instead, so they can be loaded on demand. The response
+ * includes the cursor to request the next comments with.
+ * <p>
+ * Request the comments with a GET request to a path similar to
+ * /content/rpgm/blog/2015/01/title.comments.json?order=newest&amp;after=cursor&amp;limit=10.
+ * </p>
+ */
+@SlingServlet(
+    resourceTypes = RPGMConstants.PAGE_TYPE_BLOG,
+    selectors = "comments",
+    extensions = "json",
+    methods = "GET"
+)
+public class CommentsServlet extends SlingSafeMethodsServlet {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentsServlet.class);
+
+    /** The querystring parameter holding the cursor of the last comment already displayed. */
+    private static final String CURSOR_PARAMETER = "after";
+
+    /** The querystring parameter holding the number of comments to return. */
+    private static final String LIMIT_PARAMETER = "limit";
+
+    /** The querystring parameter holding the order of the comments. */
+    private static final String ORDER_PARAMETER = "order";
+
+    /** The querystring parameter holding the comment to return the replies of. */
+    private static final String REPLIES_PARAMETER = "replies";
+
+    /** The order value for newest comments first. */
+    private static final String ORDER_NEWEST = "newest";
+
+    /** The default number of comments to return. */
+    private static final int DEFAULT_LIMIT = 10;
+
+    /** The maximum number of comments to return. */
+    private static final int MAX_LIMIT = 50;
+
+    /** Service to get the comments. */
+    @Reference
+    private CommentService commentService;
+
+    /**
+     * Write the page of comments to the response.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        final CommentPage page = commentService.getCommentPage(request.getResource().getPath(),
+            request.getParameter(REPLIES_PARAMETER),
+            request.getParameter(CURSOR_PARAMETER), getLimit(request),
+            ORDER_NEWEST.equals(request.getParameter(ORDER_PARAMETER)));
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        try {
+            JSONWriter writer = new JSONWriter(response.getWriter());
+            writer.object().key("comments").array();
+
+            for (Comment comment : page.getItems()) {
+                writer.object()
+                    .key("id").value(comment.getPath())
+                    .key("author").value(comment.getAuthor())
+                    .key("comment").value(comment.getComment())
+                    .key("date").value(comment.getDate())
+                    .key("replyCount").value(comment.getReplyCount())
+                    .endObject();
+            }
+
+            writer.endArray();
+            writer.key("total").value(page.getTotal());
+            writer.key("next").value(page.getNextCursor());
+            writer.endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
+    }
+
+    /**
+     * Get the number of comments to return from the querystring.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @return The number of comments to return.
+     */
+    private int getLimit(SlingHttpServletRequest request) {
+        int limit = DEFAULT_LIMIT;
+        String param = request.getParameter(LIMIT_PARAMETER);
+
+        if (param != null) {
+            try {
+                limit = Integer.parseInt(param);
+            } catch (NumberFormatException e) {
+                LOGGER.error("Could not get limit", e);
+            }
+        }
+
+        return Math.min(Math.max(limit, 1), MAX_LIMIT);
+    }
+}
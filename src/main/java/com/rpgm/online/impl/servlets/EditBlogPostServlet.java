@@ -30,6 +30,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.net.URLEncoder;
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,6 +120,7 @@ public class EditBlogPostServlet extends SlingAllMethodsServlet {
         properties.put("description", description);
         properties.put("month", month);
         properties.put("year", year);
+        properties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
 
         if (image != null) {
             properties.put("image", image);
@@ -1,8 +1,11 @@
 package com.rpgm.online.impl.servlets;
 
 import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.ClientAddressService;
 import com.rpgm.online.services.EmailService;
+import com.rpgm.online.services.RateLimiter;
 import com.rpgm.online.services.RecaptchaService;
+import com.rpgm.online.services.SpamFilter;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Reference;
@@ -24,7 +27,9 @@ import org.slf4j.LoggerFactory;
 /**
  * Servlet accepts posts and sends emails on behalf of the administrator
  * with the passed in request parameters for recipient, sender and
- * message.
+ * message. Clients sending too many messages are answered with 429 Too
+ * Many Requests, and messages the local spam filter scores as spam are
+ * rejected before the reCAPTCHA service is called.
  */
 @SlingServlet(paths = RPGMConstants.SERVLET_PATH_PUBLIC + "/sendmail")
 public class EmailServlet extends SlingAllMethodsServlet {
@@ -37,6 +42,18 @@ public class EmailServlet extends SlingAllMethodsServlet {
     @Reference
     private RecaptchaService recaptchaService;
 
+    /** The spam filter to reject spam before verifying with the reCAPTCHA service. */
+    @Reference
+    private SpamFilter spamFilter;
+
+    /** The rate limiter to limit how often a client sends email. */
+    @Reference
+    private RateLimiter rateLimiter;
+
+    /** The client address service to get the address the rate limit applies to. */
+    @Reference
+    private ClientAddressService clientAddressService;
+
     /** The logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(EmailServlet.class);
 
@@ -46,9 +63,12 @@ public class EmailServlet extends SlingAllMethodsServlet {
     /** The email body template. */
     static final String BODY = "From: %s <%s>\n\n%s";
 
+    /** The status of requests over the rate limit. */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     /**
-     * Send email on post to servlet. The submission is verified through the reCAPTCHA
-     * service before submitting. Upon completion, a JSON response is returned.
+     * Send email on post to servlet. The submission is verified through the spam filter
+     * and the reCAPTCHA service before submitting. Upon completion, a JSON response is returned.
      *
      * @param request The Sling HTTP servlet request
      * @param response The Sling HTTP servlet response
@@ -61,6 +81,22 @@ public class EmailServlet extends SlingAllMethodsServlet {
         response.setContentType("application/json");
 
         PrintWriter writer = response.getWriter();
+        long wait = rateLimiter.acquire(RateLimiter.ENDPOINT_SENDMAIL, clientAddressService.getClientAddress(request));
+
+        if (wait > 0) {
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            response.setHeader("Retry-After", String.valueOf((wait + 999) / 1000));
+            sendResponse(writer, SC_TOO_MANY_REQUESTS, "Too many messages were sent, please try again later.");
+            return;
+        }
+
+        if (spamFilter.classify(request.getParameter("name") + " " + request.getParameter("email"),
+                request.getParameter("message")) == SpamFilter.Verdict.SPAM) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(writer, SlingHttpServletResponse.SC_FORBIDDEN, "The message was rejected as spam.");
+            return;
+        }
+
         boolean notRobot = recaptchaService.validate(request);
 
         if (notRobot) {
@@ -0,0 +1,102 @@
+package com.rpgm.online.impl.servlets;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.CharEncoding;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rpgm.online.RPGMConstants;
+import com.rpgm.online.services.ExportProgress;
+import com.rpgm.online.services.StaticExportService;
+import com.rpgm.online.services.UserService;
+
+/**
+ * Servlet to start a full static export on POST and to return the
+ * progress of the running or last export as JSON on GET.
+ */
+@SlingServlet(paths = RPGMConstants.SERVLET_PATH_ADMIN + "/export")
+public class StaticExportServlet extends AdminServlet {
+
+    /** The logger. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaticExportServlet.class);
+
+    /** Service exporting the blog as static files. */
+    @Reference
+    private StaticExportService staticExportService;
+
+    /** Service to determine if the current user has write permissions. */
+    @Reference
+    private UserService userService;
+
+    /**
+     * Return the export progress.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        if (!userService.isAuthorable(request.getResourceResolver())) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(response.getWriter(), "Error", "Current user not authorized.");
+            return;
+        }
+
+        ExportProgress progress = staticExportService.getProgress();
+
+        try {
+            new JSONWriter(response.getWriter()).object()
+                .key("running").value(progress.isRunning())
+                .key("full").value(progress.isFull())
+                .key("total").value(progress.getTotal())
+                .key("completed").value(progress.getCompleted())
+                .key("failed").value(progress.getFailed())
+                .key("started").value(progress.getStarted())
+                .key("finished").value(progress.getFinished())
+                .endObject();
+        } catch (JSONException e) {
+            LOGGER.error("Could not write JSON", e);
+        }
+    }
+
+    /**
+     * Start a full export.
+     *
+     * @param request The Sling HTTP servlet request.
+     * @param response The Sling HTTP servlet response.
+     */
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+
+        response.setCharacterEncoding(CharEncoding.UTF_8);
+        response.setContentType("application/json");
+
+        if (!userService.isAuthorable(request.getResourceResolver())) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            sendResponse(response.getWriter(), "Error", "Current user not authorized.");
+            return;
+        }
+
+        if (staticExportService.startExport()) {
+            response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+            sendResponse(response.getWriter(), "OK", "Static export started.");
+        } else {
+            response.setStatus(SlingHttpServletResponse.SC_CONFLICT);
+            sendResponse(response.getWriter(), "Error", "Static export is disabled or already running.");
+        }
+    }
+}
@@ -36,6 +36,43 @@ public interface BlogService {
      */
     List<Resource> getPublishedPosts(SlingHttpServletRequest request, long offset, long limit);
 
+    /**
+     * Get published blog posts in order of newest first, starting after the
+     * post identified by the cursor. Unlike an offset, seeking to a cursor
+     * does not walk the posts of the preceding pages.
+     *
+     * @param request the {@link SlingHttpServletRequest} used to identify the user requesting this information
+     * @param cursor The cursor of the last post already displayed as returned by
+     *               {@link #getCursor(Resource)}, or null to start with the newest post.
+     * @param limit The number of blog posts to get.
+     * @return The published blog posts following the cursor.
+     */
+    List<Resource> getPublishedPostsAfter(SlingHttpServletRequest request, String cursor, long limit);
+
+    /**
+     * Get a page of published blog posts in order of newest first together
+     * with the total number of published blog posts. The page is computed
+     * once per request and shared with every caller asking for the same
+     * page during the request.
+     *
+     * @param request the {@link SlingHttpServletRequest} used to identify the user requesting this information
+     * @param page The page number, starting at 1.
+     * @param cursor The cursor of the last post on the previous page as returned by
+     *               {@link #getCursor(Resource)}, or null to use the page number as offset.
+     * @param pageSize The number of blog posts per page.
+     * @return The page of published blog posts.
+     */
+    PostPage getPublishedPage(SlingHttpServletRequest request, long page, String cursor, long pageSize);
+
+    /**
+     * Get the opaque pagination cursor for a blog post, made of its
+     * jcr:created date and path.
+     *
+     * @param post The blog post.
+     * @return The cursor to continue pagination after the blog post.
+     */
+    String getCursor(Resource post);
+
     /**
      * Get the number of blog posts in the system.
      *
@@ -0,0 +1,19 @@
+package com.rpgm.online.services;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The APIs provided in order to get the address of the client a request
+ * came from, such as to rate limit the client or to verify it with the
+ * reCAPTCHA service.
+ */
+public interface ClientAddressService {
+
+    /**
+     * Get the address of the client a request came from.
+     *
+     * @param request The HTTP servlet request.
+     * @return The client's IP address.
+     */
+    String getClientAddress(final HttpServletRequest request);
+}
@@ -0,0 +1,112 @@
+package com.rpgm.online.services;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable comment on a blog post with its replies.
+ */
+public final class Comment {
+
+    /** The path of the comment relative to the comments of the blog post. */
+    private final String name;
+
+    /** The comment author. */
+    private final String author;
+
+    /** The comment text. */
+    private final String comment;
+
+    /** The jcr:created date in milliseconds. */
+    private final long created;
+
+    /** The formatted creation date for display. */
+    private final String date;
+
+    /** The replies in order. */
+    private final List<Comment> replies;
+
+    /**
+     * Create a comment.
+     *
+     * @param name The path of the comment relative to the comments of the blog post, e.g.
+     *             2016-10-18/comment_1, or comment_1/comment_2 for unmigrated replies.
+     * @param author The comment author.
+     * @param comment The comment text.
+     * @param created The jcr:created date in milliseconds.
+     * @param date The formatted creation date for display.
+     * @param replies The replies in order.
+     */
+    public Comment(String name, String author, String comment, long created, String date, List<Comment> replies) {
+        this.name = name;
+        this.author = author;
+        this.comment = comment;
+        this.created = created;
+        this.date = date;
+        this.replies = replies != null ? Collections.unmodifiableList(replies) : Collections.<Comment>emptyList();
+    }
+
+    /**
+     * Get the path of the comment relative to the comments of the blog
+     * post, which identifies it among the comments of the blog post.
+     *
+     * @return The relative path of the comment.
+     */
+    public String getPath() {
+        return name;
+    }
+
+    /**
+     * Get the comment author.
+     *
+     * @return The comment author.
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * Get the comment text.
+     *
+     * @return The comment text.
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * Get the creation date.
+     *
+     * @return The jcr:created date in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get the creation date formatted for display.
+     *
+     * @return The formatted creation date.
+     */
+    public String getDate() {
+        return date;
+    }
+
+    /**
+     * Get the replies to the comment.
+     *
+     * @return The replies in order.
+     */
+    public List<Comment> getReplies() {
+        return replies;
+    }
+
+    /**
+     * Get the number of replies to the comment.
+     *
+     * @return The number of replies.
+     */
+    public int getReplyCount() {
+        return replies.size();
+    }
+}
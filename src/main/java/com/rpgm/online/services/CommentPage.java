@@ -0,0 +1,68 @@
+package com.rpgm.online.services;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable page of comments or replies of a blog post.
+ */
+public final class CommentPage {
+
+    /** The comments on this page. */
+    private final List<Comment> items;
+
+    /** The number of comments across all pages. */
+    private final int total;
+
+    /** The cursor of the following page or null if this is the last page. */
+    private final String nextCursor;
+
+    /**
+     * Create a page of comments.
+     *
+     * @param items The comments on this page.
+     * @param total The number of comments across all pages.
+     * @param nextCursor The cursor of the following page or null if this is the last page.
+     */
+    public CommentPage(List<Comment> items, int total, String nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.total = total;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Get the comments on this page.
+     *
+     * @return The comments in order.
+     */
+    public List<Comment> getItems() {
+        return items;
+    }
+
+    /**
+     * Get the number of comments across all pages.
+     *
+     * @return The number of comments.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the cursor to request the following page with.
+     *
+     * @return The cursor or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Whether a page follows this page.
+     *
+     * @return true if a page follows this page.
+     */
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.rpgm.online.services;
+
+/**
+ * The APIs provided in order to add comments to blog posts. Comments are
+ * queued and written by a single writer committing them in batches.
+ */
+public interface CommentQueue {
+
+    /**
+     * Queue a comment on a blog post. In durable mode the call returns
+     * once the comment has been committed or the commit timed out,
+     * otherwise as soon as the comment has been queued.
+     *
+     * @param blogPath The path of the blog post.
+     * @param replyTo The path of the comment replied to, or null for a top level comment.
+     * @param author The comment author.
+     * @param comment The comment text.
+     * @param held true to hold the comment for moderation.
+     * @return The result, rejected if the queue is full, invalid if the
+     *         comment replied to doesn't exist.
+     */
+    CommentSubmission submit(String blogPath, String replyTo, String author, String comment, boolean held);
+}
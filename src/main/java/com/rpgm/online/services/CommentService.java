@@ -0,0 +1,79 @@
+package com.rpgm.online.services;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * The APIs provided in order to read and store the comments of blog posts.
+ */
+public interface CommentService {
+
+    /**
+     * Get the comments of a blog post. The comments are shared by all
+     * users, so they are read as the anonymous user rather than with the
+     * resource resolver of the current user.
+     *
+     * @param blogPath The path of the blog post.
+     * @return The comments of the blog post, empty if it has none.
+     */
+    CommentTree getCommentTree(String blogPath);
+
+    /**
+     * Get a page of the comments of a blog post, or of the replies to one
+     * of its comments. Comments are ordered by creation.
+     *
+     * @param blogPath The path of the blog post.
+     * @param parent The path of the comment to get the replies of, or null for the top level comments.
+     * @param cursor The cursor of the last comment already seen, or null for the first page.
+     * @param limit The number of comments to get, 0 for all.
+     * @param newestFirst true to order the newest comments first.
+     * @return The page of comments.
+     */
+    CommentPage getCommentPage(String blogPath, String parent, String cursor, int limit, boolean newestFirst);
+
+    /**
+     * Get the number of comments of a blog post as kept on its comments
+     * node, without reading the comments.
+     *
+     * @param resolver The resource resolver of the current user.
+     * @param blogPath The path of the blog post.
+     * @return The number of comments and replies, 0 if it has none.
+     */
+    long getCommentCount(ResourceResolver resolver, String blogPath);
+
+    /**
+     * Count the comments of a blog post by walking its comments. Used to
+     * initialize and repair the count kept on the comments node.
+     *
+     * @param commentsResource The comments resource of the blog post.
+     * @return The number of comment nodes below the comments resource not held for moderation.
+     */
+    long countComments(Resource commentsResource);
+
+    /**
+     * Get the path of a new comment relative to the comments of its blog
+     * post. Comments and replies are stored in buckets by the day they were
+     * posted. The comment name is unique without looking up the repository
+     * and sorts by creation.
+     *
+     * @return The relative path of the new comment.
+     */
+    String getNewCommentPath();
+
+    /**
+     * Format a time the way comment dates are displayed.
+     *
+     * @param time The time in milliseconds.
+     * @return The display date.
+     */
+    String getDisplayDate(long time);
+
+    /**
+     * Whether the comments are rendered as a separate fragment rather than
+     * with the blog post, so that the blog post page doesn't change when a
+     * comment is added.
+     *
+     * @return true if the comments are loaded separately from the blog post.
+     */
+    boolean isDeferred();
+}
@@ -0,0 +1,73 @@
+package com.rpgm.online.services;
+
+/**
+ * Immutable result of submitting a comment to the comment queue.
+ */
+public final class CommentSubmission {
+
+    /**
+     * What became of a submitted comment.
+     */
+    public enum Status {
+        /** Queued, but not known to be committed yet. */
+        QUEUED,
+        /** Committed to the repository. */
+        COMMITTED,
+        /** Not queued because the queue is full. */
+        REJECTED,
+        /** Queued, but could not be committed. */
+        FAILED,
+        /** Queued, but not committed because the comment replied to doesn't exist or is held for moderation. */
+        INVALID
+    }
+
+    /** What became of the comment. */
+    private final Status status;
+
+    /** The path of the comment relative to the comments of the blog post. */
+    private final String path;
+
+    /** When the comment was submitted in milliseconds. */
+    private final long submitted;
+
+    /**
+     * Create a submission result.
+     *
+     * @param status What became of the comment.
+     * @param path The path of the comment relative to the comments of the blog post, null if rejected.
+     * @param submitted When the comment was submitted in milliseconds.
+     */
+    public CommentSubmission(Status status, String path, long submitted) {
+        this.status = status;
+        this.path = path;
+        this.submitted = submitted;
+    }
+
+    /**
+     * Get what became of the comment.
+     *
+     * @return The status.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the path of the comment relative to the comments of the blog
+     * post, which identifies it like {@link Comment#getPath()}.
+     *
+     * @return The relative path or null if the comment was rejected.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get when the comment was submitted.
+     *
+     * @return The submission time in milliseconds.
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+}
@@ -0,0 +1,87 @@
+package com.rpgm.online.services;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable comments of a blog post, nested to any depth, indexed by their
+ * relative paths and the paths migrated comments had before.
+ */
+public final class CommentTree {
+
+    /** The top level comments in order. */
+    private final List<Comment> comments;
+
+    /** The number of comments and replies. */
+    private final int count;
+
+    /** The comments and replies at any depth keyed by relative path. */
+    private final Map<String, Comment> index = new HashMap<>();
+
+    /** The relative paths of migrated comments keyed by the relative paths they had before. */
+    private final Map<String, String> migratedPaths;
+
+    /**
+     * Create a comment tree.
+     *
+     * @param comments The top level comments in order.
+     * @param count The number of comments and replies.
+     */
+    public CommentTree(List<Comment> comments, int count) {
+        this(comments, count, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Create a comment tree of migrated comments.
+     *
+     * @param comments The top level comments in order.
+     * @param count The number of comments and replies.
+     * @param migratedPaths The relative paths of migrated comments keyed by the relative paths they had before.
+     */
+    public CommentTree(List<Comment> comments, int count, Map<String, String> migratedPaths) {
+        this.comments = Collections.unmodifiableList(comments);
+        this.count = count;
+        this.migratedPaths = Collections.unmodifiableMap(new HashMap<>(migratedPaths));
+        index(comments);
+    }
+
+    /**
+     * Find a comment or reply at any depth, by its path or the path it had
+     * before it was migrated.
+     *
+     * @param path The path of the comment relative to the comments of the blog post.
+     * @return The comment or null if the blog post has no such comment.
+     */
+    public Comment find(String path) {
+        Comment comment = index.get(path);
+
+        return comment != null || !migratedPaths.containsKey(path) ? comment : index.get(migratedPaths.get(path));
+    }
+
+    /**
+     * Get the top level comments.
+     *
+     * @return The top level comments in order.
+     */
+    public List<Comment> getComments() {
+        return comments;
+    }
+
+    /**
+     * Get the number of comments and replies.
+     *
+     * @return The number of comments and replies.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private void index(List<Comment> comments) {
+        for (Comment comment : comments) {
+            index.put(comment.getPath(), comment);
+            index(comment.getReplies());
+        }
+    }
+}
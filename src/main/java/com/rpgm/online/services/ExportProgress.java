@@ -0,0 +1,114 @@
+package com.rpgm.online.services;
+
+/**
+ * Immutable progress of a static export.
+ */
+public final class ExportProgress {
+
+    /** Whether the export is running. */
+    private final boolean running;
+
+    /** Whether the export is a full export rather than an update. */
+    private final boolean full;
+
+    /** The number of pages to export. */
+    private final int total;
+
+    /** The number of pages exported so far. */
+    private final int completed;
+
+    /** The number of pages that failed to export. */
+    private final int failed;
+
+    /** When the export started in milliseconds, 0 if none has run. */
+    private final long started;
+
+    /** When the export finished in milliseconds, 0 while running. */
+    private final long finished;
+
+    /**
+     * Create the progress of an export.
+     *
+     * @param running Whether the export is running.
+     * @param full Whether the export is a full export.
+     * @param total The number of pages to export.
+     * @param completed The number of pages exported so far.
+     * @param failed The number of pages that failed to export.
+     * @param started When the export started in milliseconds.
+     * @param finished When the export finished in milliseconds.
+     */
+    public ExportProgress(boolean running, boolean full, int total, int completed, int failed,
+            long started, long finished) {
+        this.running = running;
+        this.full = full;
+        this.total = total;
+        this.completed = completed;
+        this.failed = failed;
+        this.started = started;
+        this.finished = finished;
+    }
+
+    /**
+     * Whether the export is running.
+     *
+     * @return true while the export is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Whether the export is a full export rather than an update of the
+     * pages affected by a change.
+     *
+     * @return true for a full export.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Get the number of pages to export.
+     *
+     * @return The number of pages to export.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the number of pages exported so far.
+     *
+     * @return The number of pages exported.
+     */
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Get the number of pages that failed to export.
+     *
+     * @return The number of failed pages.
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get when the export started.
+     *
+     * @return When the export started in milliseconds, 0 if none has run.
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Get when the export finished.
+     *
+     * @return When the export finished in milliseconds, 0 while running.
+     */
+    public long getFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,109 @@
+package com.rpgm.online.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Immutable page of published blog posts together with the pagination
+ * information needed to render the list and its page links.
+ */
+public final class PostPage {
+
+    /** The blog posts on the page. */
+    private final List<Resource> items;
+
+    /** The total number of published blog posts. */
+    private final long total;
+
+    /** The page number, starting at 1. */
+    private final long page;
+
+    /** The number of blog posts per page. */
+    private final long pageSize;
+
+    /** The cursor of the last blog post on the page. */
+    private final String nextCursor;
+
+    /**
+     * Create a page of blog posts.
+     *
+     * @param items The blog posts on the page.
+     * @param total The total number of published blog posts.
+     * @param page The page number, starting at 1.
+     * @param pageSize The number of blog posts per page.
+     * @param nextCursor The cursor of the last blog post on the page, null if the page is empty.
+     */
+    public PostPage(List<Resource> items, long total, long page, long pageSize, String nextCursor) {
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.total = total;
+        this.page = page;
+        this.pageSize = pageSize;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Get the blog posts on the page.
+     *
+     * @return The unmodifiable list of blog posts on the page.
+     */
+    public List<Resource> getItems() {
+        return items;
+    }
+
+    /**
+     * Get the total number of published blog posts.
+     *
+     * @return The total number of published blog posts.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Get the page number.
+     *
+     * @return The page number, starting at 1.
+     */
+    public long getPage() {
+        return page;
+    }
+
+    /**
+     * Get the number of pages required to display all published blog posts.
+     *
+     * @return The number of pages.
+     */
+    public long getTotalPages() {
+        return pageSize > 0 ? (total + pageSize - 1) / pageSize : 0;
+    }
+
+    /**
+     * Whether there are blog posts after this page.
+     *
+     * @return true if there is a next page.
+     */
+    public boolean hasNext() {
+        return page < getTotalPages();
+    }
+
+    /**
+     * Whether there are blog posts before this page.
+     *
+     * @return true if there is a previous page.
+     */
+    public boolean hasPrevious() {
+        return page > 1;
+    }
+
+    /**
+     * Get the cursor to fetch the page following this one.
+     *
+     * @return The cursor of the last blog post on the page, null if the page is empty.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,85 @@
+package com.rpgm.online.services;
+
+/**
+ * Immutable summary of a published blog post as held by the
+ * {@link PublishedPostIndex}.
+ */
+public final class PostSummary {
+
+    /** The blog post path. */
+    private final String path;
+
+    /** The blog post jcr:created date in milliseconds. */
+    private final long created;
+
+    /** The blog post title. */
+    private final String title;
+
+    /** The blog post description. */
+    private final String description;
+
+    /** The blog post image path. */
+    private final String image;
+
+    /**
+     * Create a blog post summary.
+     *
+     * @param path The blog post path.
+     * @param created The blog post jcr:created date in milliseconds.
+     * @param title The blog post title.
+     * @param description The blog post description.
+     * @param image The blog post image path.
+     */
+    public PostSummary(String path, long created, String title, String description, String image) {
+        this.path = path;
+        this.created = created;
+        this.title = title;
+        this.description = description;
+        this.image = image;
+    }
+
+    /**
+     * Get the blog post path.
+     *
+     * @return The blog post path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the blog post jcr:created date.
+     *
+     * @return The blog post jcr:created date in milliseconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get the blog post title.
+     *
+     * @return The blog post title.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the blog post description.
+     *
+     * @return The blog post description.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Get the blog post image path.
+     *
+     * @return The blog post image path.
+     */
+    public String getImage() {
+        return image;
+    }
+}
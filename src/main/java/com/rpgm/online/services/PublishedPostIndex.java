@@ -0,0 +1,54 @@
+package com.rpgm.online.services;
+
+import java.util.List;
+
+/**
+ * In-memory index of the published blog posts, ordered newest first by
+ * jcr:created and then by path. The index is built once and kept up to
+ * date from repository events, so lists, pages and counts can be answered
+ * without running a query.
+ */
+public interface PublishedPostIndex {
+
+    /**
+     * Whether the index has been built and can answer requests.
+     *
+     * @return true if the index is ready.
+     */
+    boolean isReady();
+
+    /**
+     * Get the number of published blog posts.
+     *
+     * @return The number of published blog posts.
+     */
+    int size();
+
+    /**
+     * Get when the published blog posts last changed, that is when a
+     * blog post was last published, edited or unpublished.
+     *
+     * @return The last change in milliseconds, or when the index was built.
+     */
+    long getLastModified();
+
+    /**
+     * Get published blog posts in order of newest first.
+     *
+     * @param offset The starting point of blog posts to get.
+     * @param limit The number of blog posts to get, 0 for all.
+     * @return The published blog posts according to the starting point and length.
+     */
+    List<PostSummary> getPosts(long offset, long limit);
+
+    /**
+     * Get published blog posts in order of newest first that follow the
+     * blog post with the given creation date and path.
+     *
+     * @param created The jcr:created date in milliseconds of the last blog post already seen.
+     * @param path The path of the last blog post already seen.
+     * @param limit The number of blog posts to get, 0 for all.
+     * @return The published blog posts following the given blog post.
+     */
+    List<PostSummary> getPostsAfter(long created, String path, long limit);
+}
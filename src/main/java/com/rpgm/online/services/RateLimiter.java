@@ -0,0 +1,24 @@
+package com.rpgm.online.services;
+
+/**
+ * The APIs provided in order to limit how often a client may call an
+ * expensive endpoint such as posting a comment or sending an email.
+ */
+public interface RateLimiter {
+
+    /** The endpoint name of the email servlet */
+    public static final String ENDPOINT_SENDMAIL = "sendmail";
+
+    /** The endpoint name of the comment servlet */
+    public static final String ENDPOINT_COMMENT = "comment";
+
+    /**
+     * Take a request of a client to an endpoint from the client's allowance.
+     *
+     * @param endpoint The name of the endpoint.
+     * @param client The address of the client.
+     * @return 0 if the request is allowed, otherwise the milliseconds until
+     *          the client may call the endpoint again.
+     */
+    long acquire(final String endpoint, final String client);
+}
@@ -0,0 +1,48 @@
+package com.rpgm.online.services;
+
+/**
+ * The APIs provided in order to score comments and emails as spam locally,
+ * before they are verified with the reCAPTCHA service, and to train the
+ * filter with the decisions of moderators.
+ */
+public interface SpamFilter {
+
+    /**
+     * What the filter makes of a submission.
+     */
+    public enum Verdict {
+        /** Not spam, or the filter hasn't been trained enough to tell. */
+        HAM,
+        /** Possibly spam, to be held for moderation. */
+        SUSPECT,
+        /** Spam, to be rejected. */
+        SPAM
+    }
+
+    /**
+     * Score a submission.
+     *
+     * @param author The name of the submitter.
+     * @param text The submitted text.
+     * @return The probability between 0 and 1 that the submission is spam.
+     */
+    double score(final String author, final String text);
+
+    /**
+     * Classify a submission by its score.
+     *
+     * @param author The name of the submitter.
+     * @param text The submitted text.
+     * @return The verdict, always ham if the filter is disabled.
+     */
+    Verdict classify(final String author, final String text);
+
+    /**
+     * Train the filter with a submission a moderator has decided on.
+     *
+     * @param author The name of the submitter.
+     * @param text The submitted text.
+     * @param spam true if the submission is spam.
+     */
+    void train(final String author, final String text, final boolean spam);
+}
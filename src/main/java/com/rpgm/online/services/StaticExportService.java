@@ -0,0 +1,23 @@
+package com.rpgm.online.services;
+
+/**
+ * The APIs provided in order to export the blog as static files that
+ * a plain web server can serve to anonymous readers.
+ */
+public interface StaticExportService {
+
+    /**
+     * Start a full export of the published blog posts and the blog list
+     * pages in the background.
+     *
+     * @return false if exporting is disabled or an export is already running.
+     */
+    boolean startExport();
+
+    /**
+     * Get the progress of the running or last export.
+     *
+     * @return The export progress.
+     */
+    ExportProgress getProgress();
+}
@@ -55,4 +55,14 @@ public interface SystemSettingsService {
      * @return true if the save was successful.
      */
     boolean setExtensionlessUrls(final boolean value);
+
+    /**
+     * Get the version of the settings, which changes whenever the
+     * settings are saved. The version is kept with the settings in the
+     * repository, so it is the same after a restart and on every instance.
+     *
+     * @return The time of the last settings change in milliseconds, 0 if
+     *         the settings were never saved.
+     */
+    long getVersion();
 }
\ No newline at end of file
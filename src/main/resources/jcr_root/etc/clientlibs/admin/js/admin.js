@@ -290,6 +290,32 @@ app.controller('UserModalController', function ($scope, $modalInstance, UserServ
   };
 });
 
+app.controller('CommentModerationController', function($scope, CommentService) {
+
+  $scope.comments = [];
+  $scope.published = [];
+  $scope.loaded = false;
+
+  $scope.moderate = function(comments, index, action) {
+    CommentService.moderate(comments[index].path, action)
+      .success(function(data){
+        comments.splice(index, 1);
+      })
+      .error(function(data){
+        alert(data && data.message ? data.message : 'error');
+      });
+  };
+
+  CommentService.getHeldComments().success(function(data){
+    $scope.comments = data;
+    $scope.loaded = true;
+  });
+
+  CommentService.getPublishedComments().success(function(data){
+    $scope.published = data;
+  });
+});
+
 app.factory('formDataObject', function() {
   return function(data, headersGetter) {
     var formData = new FormData();
@@ -400,6 +426,33 @@ app.factory('UserService', function($http, formDataObject) {
   return userFactory;
 });
 
+app.factory('CommentService', function($http, formDataObject) {
+  var commentFactory = {},
+      PATH_COMMENTS  = '/bin/admin/comments';
+
+  commentFactory.getHeldComments = function() {
+    return $http.get(PATH_COMMENTS);
+  };
+
+  commentFactory.getPublishedComments = function() {
+    return $http.get(PATH_COMMENTS, {params: {published: true}});
+  };
+
+  commentFactory.moderate = function(path, action) {
+    return $http({
+      method: 'POST',
+      url: PATH_COMMENTS,
+      data: {
+        path: path,
+        action: action
+      },
+      transformRequest: formDataObject
+    });
+  };
+
+  return commentFactory;
+});
+
 app.factory('SettingsService', function($http, formDataObject) {
   var settingsFactory = {},
       PATH_BASE = '/bin/admin',
@@ -1,13 +1,48 @@
 /**
- * Handle comment submission. Currently the form is a full postback but will
- * become an AJAX call.
+ * Load the comments of a blog post. The comments are rendered with the blog
+ * post unless comments are deferred, in which case the blog post is rendered
+ * without them and they are loaded from the comments fragment. The comment
+ * handlers are set up once the comments are in the page.
  */
 $(function(){
+  var $commentsFragment = $('#commentsFragment');
+
+  if (!$commentsFragment.length) {
+    $(document).trigger('rpgm:comments');
+    return;
+  }
+
+  $commentsFragment.load($commentsFragment.data('fragment-path'), function(){
+    if (window.grecaptcha && grecaptcha.render) {
+      $commentsFragment.find('.g-recaptcha:empty').each(function(){
+        var $recaptcha = $(this);
+
+        grecaptcha.render(this, {
+          sitekey: $recaptcha.data('sitekey'),
+          theme: $recaptcha.data('theme'),
+          type: $recaptcha.data('type'),
+          size: $recaptcha.data('size')
+        });
+      });
+    }
+    $(document).trigger('rpgm:comments');
+  });
+});
+
+/**
+ * Handle comment submission. The form is posted as an AJAX call answered
+ * with the created comment as JSON, which is added to the list without
+ * reloading the page. The form action remains as the full postback without
+ * JavaScript.
+ */
+$(document).on('rpgm:comments', function(){
   var $commentForm = $('#commentForm'),
       $newCommentContainer = $('#newCommentContainer'),
       $addCommentContainer = $('#addCommentContainer'),
       $commentListContainer = $('#commentListContainer'),
-      $commentPathField = $('#reply-to-comment');
+      $commentPathField = $('#reply-to-comment'),
+      $commentError = $('#commentError'),
+      $commentNotice = $('#commentNotice');
 
   /**
    * Move the form back to its original location and reset the path field to
@@ -29,7 +64,7 @@ $(function(){
    */
   $commentListContainer.on('click', '.comment-reply', function(e){
     var $this = $(this),
-        $listItem = $this.parents('li'),
+        $listItem = $this.closest('li.media'),
         commentPath = $listItem.data('comment-id');
 
     e.preventDefault();
@@ -37,4 +72,241 @@ $(function(){
     $listItem.append($commentForm);
     $commentPathField.val(commentPath);
   });
+
+  /**
+   * Post the comment as JSON. On success reset the form and let the comment
+   * list show the new comment, or tell the user the comment is held for
+   * moderation. Otherwise show the reason it wasn't posted.
+   */
+  $commentForm.find('form').submit(function(e){
+    var $form = $(this),
+        $button = $form.find('button[type="submit"]'),
+        replyTo = $commentPathField.val();
+
+    e.preventDefault();
+    $commentError.hide();
+    $commentNotice.hide();
+    $button.prop('disabled', true);
+
+    $.ajax({
+      url: $form.data('json-action'),
+      type: 'POST',
+      data: $form.serialize(),
+      dataType: 'json'
+    }).done(function(data){
+      $form.find('#comment-content-field').val('');
+      if (data.held) {
+        $commentNotice.text(data.message).show();
+      } else {
+        $commentListContainer.trigger('rpgm:commentAdded', [data.comment, replyTo]);
+      }
+    }).fail(function(xhr){
+      var data = xhr.responseJSON || {};
+      $commentError.text(data.message || 'Your comment could not be posted, please try again.').show();
+    }).always(function(){
+      $button.prop('disabled', false);
+      if (window.grecaptcha && grecaptcha.reset) {
+        grecaptcha.reset();
+      }
+    });
+  });
+});
+
+/**
+ * Load further comments and the replies to a comment on demand. Only the
+ * first page of comments is rendered with the blog post, with their threads
+ * if they are short; the rest are loaded as JSON from the comments of the
+ * blog post, oldest or newest first, and their replies one level at a time.
+ */
+$(document).on('rpgm:comments', function(){
+  var $commentListContainer = $('#commentListContainer'),
+      $moreCommentsContainer = $('#moreCommentsContainer'),
+      commentsPath = $commentListContainer.data('comments-path'),
+      pageSize = $commentListContainer.data('page-size'),
+      nextCursor = $commentListContainer.data('next-cursor'),
+      order = 'oldest';
+
+  if (!$commentListContainer.length) {
+    return;
+  }
+
+  /**
+   * Build the markup of a comment or reply.
+   */
+  function renderComment(comment) {
+    var $comment = $('<li class="media"></li>').attr('data-comment-id', comment.id),
+        $body = $('<div class="media-body"></div>'),
+        $heading = $('<h4 class="media-heading"></h4>').text(comment.author + ' ');
+
+    $heading.append($('<small></small>').text(comment.date + ' ')
+      .append('<a href="#" class="comment-reply">Reply</a>'));
+    $body.append($heading).append($('<p></p>').text(comment.comment));
+
+    if (comment.replyCount > 0) {
+      $body.append($('<a href="#" class="comment-replies"></a>').text('Show replies (' + comment.replyCount + ')'));
+    }
+
+    return $comment
+      .append('<div class="media-left"><span class="glyphicon glyphicon-user comment-user" aria-hidden="true"></span></div>')
+      .append($body);
+  }
+
+  /**
+   * Load the next page of comments and append them to the list.
+   */
+  function loadComments() {
+    $.getJSON(commentsPath, {after: nextCursor || '', limit: pageSize, order: order})
+      .done(function(data){
+        $.each(data.comments, function(index, comment){
+          $commentListContainer.append(renderComment(comment));
+        });
+        nextCursor = data.next;
+        $moreCommentsContainer.toggle(!!nextCursor);
+      });
+  }
+
+  $moreCommentsContainer.click(function(e){
+    e.preventDefault();
+    loadComments();
+  });
+
+  /**
+   * Show a comment posted by the reader, as a reply below the comment it
+   * replies to or as a top level comment at the end of the list in the
+   * current order.
+   */
+  $commentListContainer.on('rpgm:commentAdded', function(e, comment, replyTo){
+    var $count = $('.comment-count');
+
+    $count.text(parseInt($count.text(), 10) + 1);
+
+    if (replyTo) {
+      getThread($commentListContainer.find('li.media').filter(function(){
+        return $(this).data('comment-id') === replyTo;
+      }).first()).append(renderComment(comment));
+    } else if (order === 'newest') {
+      $commentListContainer.prepend(renderComment(comment));
+    } else if (!nextCursor) {
+      $commentListContainer.append(renderComment(comment));
+    }
+  });
+
+  /**
+   * Get the list of replies of a comment, adding it before the link to
+   * load further replies if the comment has none yet.
+   */
+  function getThread($listItem) {
+    var $body = $listItem.children('.media-body'),
+        $thread = $body.children('.comment-thread');
+
+    if (!$thread.length) {
+      $thread = $('<ul class="media-list comment-thread"></ul>');
+      if ($body.children('.comment-replies').length) {
+        $body.children('.comment-replies').before($thread);
+      } else {
+        $body.append($thread);
+      }
+    }
+
+    return $thread;
+  }
+
+  /**
+   * Reload the comments in the selected order.
+   */
+  $('.comment-order').on('click', 'a', function(e){
+    e.preventDefault();
+    order = $(this).data('order');
+    nextCursor = null;
+    $commentListContainer.children('li').not(':has(#commentForm)').remove();
+    loadComments();
+  });
+
+  /**
+   * Load the replies to a comment in place of the link, following the
+   * replies already loaded.
+   */
+  $commentListContainer.on('click', '.comment-replies', function(e){
+    var $link = $(this),
+        $listItem = $link.closest('li.media');
+
+    e.preventDefault();
+    $.getJSON(commentsPath, {replies: $listItem.data('comment-id'), after: $link.data('next-cursor') || '', limit: 50})
+      .done(function(data){
+        var $thread = getThread($listItem);
+
+        $.each(data.comments, function(index, reply){
+          $thread.append(renderComment(reply));
+        });
+        if (data.next) {
+          $link.data('next-cursor', data.next).text('More replies');
+        } else {
+          $link.remove();
+        }
+      });
+  });
+});
+
+/**
+ * Infinite scroll for the blog list. Further posts are loaded as the HTML
+ * fragment of the blog list component, rendered and filtered server side,
+ * and appended to the list instead of rendering the next page. While there
+ * are further posts a "More posts" link replaces the pagination, which
+ * remains as the fallback without JavaScript.
+ */
+$(function(){
+  var $blogList = $('#blogListContainer'),
+      $window = $(window),
+      loading = false,
+      nextCursor = $blogList.data('next-cursor'),
+      $more;
+
+  if (!$blogList.length || !nextCursor) {
+    return;
+  }
+
+  $more = $('<div class="container"><div class="row"><div class="col-md-12 text-center">'
+    + '<a href="#" class="btn btn-default blog-list-more">More posts</a></div></div></div>');
+  $blogList.after($more);
+  $('.pagination').closest('nav').hide();
+
+  /**
+   * Load the posts following the last loaded post. Once there are no further
+   * posts the "More posts" link is removed.
+   */
+  function loadMore() {
+    if (loading || !nextCursor) {
+      return;
+    }
+
+    loading = true;
+
+    $.get($blogList.data('fragment-path'), {after: nextCursor}, null, 'html')
+      .done(function(html){
+        var $fragment = $($.parseHTML(html)).filter('#blogListContainer');
+
+        $blogList.append($fragment.children());
+        nextCursor = $fragment.attr('data-next-cursor');
+        if (!nextCursor) {
+          $more.remove();
+        }
+      })
+      .always(function(){
+        loading = false;
+      });
+  }
+
+  $more.on('click', 'a', function(e){
+    e.preventDefault();
+    loadMore();
+  });
+
+  /**
+   * Load further posts once the reader scrolls close to the end of the list.
+   */
+  $window.on('scroll', function(){
+    if ($window.scrollTop() + $window.height() >= $blogList.offset().top + $blogList.height() - 200) {
+      loadMore();
+    }
+  });
 });
\ No newline at end of file